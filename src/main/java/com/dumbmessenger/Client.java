@@ -4,34 +4,89 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.warrenstrange.googleauth.GoogleAuthenticator;
 import com.warrenstrange.googleauth.GoogleAuthenticatorKey;
 import okhttp3.*;
+import org.java_websocket.WebSocket;
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.Framedata;
 import org.java_websocket.handshake.ServerHandshake;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
-public class Client {
+public class Client implements Closeable {
+    private static final long DEFAULT_HEARTBEAT_INTERVAL_MILLIS = 15_000;
+    private static final long DEFAULT_HEARTBEAT_TIMEOUT_MILLIS = 45_000;
+    private static final long RECONNECT_BASE_DELAY_MILLIS = 1_000;
+    private static final long RECONNECT_MAX_DELAY_MILLIS = 30_000;
+    private static final long HEALTH_CHECK_INTERVAL_MILLIS = 5_000;
+    private static final double LATENCY_SMOOTHING = 0.2;
+
     private final String baseUrl;
+    private final EndpointPool endpointPool;
     private final OkHttpClient httpClient;
     private final ObjectMapper objectMapper;
     private final GoogleAuthenticator authenticator;
     private String authToken;
-    private MessengerWebSocketClient webSocketClient;
+    private volatile MessengerWebSocketClient webSocketClient;
     private final Map<String, List<Consumer<Models.Message>>> messageListeners;
     private final List<Consumer<Models.WebSocketEvent>> eventListeners;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final ScheduledFuture<?> healthChecks;
+    private volatile long heartbeatIntervalMillis = DEFAULT_HEARTBEAT_INTERVAL_MILLIS;
+    private volatile long heartbeatTimeoutMillis = DEFAULT_HEARTBEAT_TIMEOUT_MILLIS;
+    private volatile boolean autoReconnect = true;
+    private volatile double webSocketLatencyMillis = -1;
+    private int reconnectAttempts;
+    private EndpointPool.Endpoint webSocketEndpoint;
+    private volatile MessageIndex messageIndex;
+    private volatile boolean closed;
 
     public Client(String baseUrl) {
-        this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
-        this.httpClient = new OkHttpClient.Builder().build();
+        this(List.of(baseUrl));
+    }
+
+    public Client(List<String> baseUrls) {
+        this(baseUrls, EndpointPool.roundRobin());
+    }
+
+    /**
+     * Creates a client that balances requests over several equivalent server nodes.
+     * Requests are built against the first URL and rerouted by the {@link EndpointPool}.
+     */
+    public Client(List<String> baseUrls, EndpointPool.Selector selector) {
+        this.endpointPool = new EndpointPool(baseUrls, selector);
+        this.baseUrl = endpointPool.getPrimary().getUrl();
         this.objectMapper = new ObjectMapper();
         this.authenticator = new GoogleAuthenticator();
         this.messageListeners = new ConcurrentHashMap<>();
-        this.eventListeners = new ArrayList<>();
+        this.eventListeners = new CopyOnWriteArrayList<>();
+        this.scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "dumbmessenger-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.setKeepAliveTime(RECONNECT_MAX_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        this.scheduler.allowCoreThreadTimeOut(true);
+        this.scheduler.setRemoveOnCancelPolicy(true);
+
+        OkHttpClient.Builder httpBuilder = new OkHttpClient.Builder();
+        if (endpointPool.getEndpoints().size() > 1) {
+            httpBuilder.addInterceptor(endpointPool);
+        }
+        this.httpClient = httpBuilder.build();
+        this.healthChecks = endpointPool.getEndpoints().size() > 1
+            ? endpointPool.startHealthChecks(httpClient, scheduler, HEALTH_CHECK_INTERVAL_MILLIS)
+            : null;
     }
 
     public Models.AuthResponse register(String username, String password) throws IOException {
@@ -315,6 +370,15 @@ public class Client {
 
     public Models.MessageResponse sendMessage(String channel, String text, String replyTo, 
                                      boolean encrypt) throws IOException {
+        return sendMessage(channel, text, replyTo, encrypt, null);
+    }
+
+    /**
+     * Sends a message with an {@code Idempotency-Key} header so the server can drop
+     * duplicates when the same send is retried.
+     */
+    public Models.MessageResponse sendMessage(String channel, String text, String replyTo,
+                                     boolean encrypt, String idempotencyKey) throws IOException {
         Map<String, Object> request = new HashMap<>();
         request.put("channel", channel);
         request.put("text", text);
@@ -328,18 +392,25 @@ public class Client {
             MediaType.parse("application/json")
         );
 
-        Request httpRequest = new Request.Builder()
+        Request.Builder httpRequest = new Request.Builder()
             .url(baseUrl + "api/message")
             .header("Authorization", "Bearer " + authToken)
-            .post(body)
-            .build();
+            .post(body);
+        if (idempotencyKey != null) {
+            httpRequest.header("Idempotency-Key", idempotencyKey);
+        }
 
-        try (Response response = httpClient.newCall(httpRequest).execute()) {
-            return objectMapper.readValue(response.body().string(), Models.MessageResponse.class);
+        try (Response response = httpClient.newCall(httpRequest.build()).execute()) {
+            return indexed(parseSendResponse(response));
         }
     }
 
     public Models.MessageResponse sendVoiceOnly(String channel, String voiceMessage) throws IOException {
+        return sendVoiceOnly(channel, voiceMessage, null);
+    }
+
+    public Models.MessageResponse sendVoiceOnly(String channel, String voiceMessage,
+                                                String idempotencyKey) throws IOException {
         Map<String, String> request = Map.of(
             "channel", channel,
             "voiceMessage", voiceMessage
@@ -350,14 +421,16 @@ public class Client {
             MediaType.parse("application/json")
         );
 
-        Request httpRequest = new Request.Builder()
+        Request.Builder httpRequest = new Request.Builder()
             .url(baseUrl + "api/message/voice-only")
             .header("Authorization", "Bearer " + authToken)
-            .post(body)
-            .build();
+            .post(body);
+        if (idempotencyKey != null) {
+            httpRequest.header("Idempotency-Key", idempotencyKey);
+        }
 
-        try (Response response = httpClient.newCall(httpRequest).execute()) {
-            return objectMapper.readValue(response.body().string(), Models.MessageResponse.class);
+        try (Response response = httpClient.newCall(httpRequest.build()).execute()) {
+            return indexed(parseSendResponse(response));
         }
     }
 
@@ -377,7 +450,13 @@ public class Client {
             .build();
 
         try (Response response = httpClient.newCall(httpRequest).execute()) {
-            return objectMapper.readValue(response.body().string(), Models.MessageListResponse.class);
+            Models.MessageListResponse listResponse =
+                objectMapper.readValue(response.body().string(), Models.MessageListResponse.class);
+            MessageIndex index = messageIndex;
+            if (index != null && listResponse.success) {
+                index.addAll(listResponse.messages);
+            }
+            return listResponse;
         }
     }
 
@@ -389,8 +468,22 @@ public class Client {
             .build();
 
         try (Response response = httpClient.newCall(httpRequest).execute()) {
-            return objectMapper.readValue(response.body().string(), Models.MessageResponse.class);
+            return indexed(objectMapper.readValue(response.body().string(), Models.MessageResponse.class));
+        }
+    }
+
+    private Models.MessageResponse parseSendResponse(Response response) throws IOException {
+        Models.MessageResponse parsed = objectMapper.readValue(response.body().string(), Models.MessageResponse.class);
+        parsed.status = response.code();
+        return parsed;
+    }
+
+    private Models.MessageResponse indexed(Models.MessageResponse messageResponse) {
+        MessageIndex index = messageIndex;
+        if (index != null && messageResponse.success) {
+            index.add(messageResponse.message);
         }
+        return messageResponse;
     }
 
     public Models.FileUploadResponse uploadFile(File file) throws IOException {
@@ -569,60 +662,271 @@ public class Client {
         }
     }
 
-    public void connectWebSocket() {
+    /**
+     * Opens the event socket, replacing any existing one.
+     *
+     * @throws IllegalStateException if the client is closed, or if heartbeats are
+     *         enabled and the heartbeat timeout is not longer than the heartbeat interval
+     */
+    public synchronized void connectWebSocket() {
+        if (closed) {
+            throw new IllegalStateException("Client is closed");
+        }
+        if (heartbeatIntervalMillis > 0 && heartbeatTimeoutMillis <= heartbeatIntervalMillis) {
+            throw new IllegalStateException("Heartbeat timeout (" + heartbeatTimeoutMillis
+                + " ms) must be longer than the heartbeat interval (" + heartbeatIntervalMillis + " ms)");
+        }
         if (webSocketClient != null) {
-            webSocketClient.close();
+            webSocketClient.shutdown();
         }
 
-        String wsUrl = baseUrl.replace("http", "ws") + "api/events?token=" + authToken;
-        webSocketClient = new MessengerWebSocketClient(URI.create(wsUrl));
+        // Stay on the same node across reconnects unless it has been marked down.
+        if (webSocketEndpoint == null || !webSocketEndpoint.isHealthy()) {
+            webSocketEndpoint = endpointPool.select();
+        }
+        String wsUrl = webSocketEndpoint.getUrl().replace("http", "ws") + "api/events?token=" + authToken;
+        webSocketClient = new MessengerWebSocketClient(URI.create(wsUrl), webSocketEndpoint);
         webSocketClient.connect();
     }
 
-    public void disconnectWebSocket() {
+    public synchronized void disconnectWebSocket() {
         if (webSocketClient != null) {
-            webSocketClient.close();
+            webSocketClient.shutdown();
             webSocketClient = null;
         }
+        reconnectAttempts = 0;
+        webSocketLatencyMillis = -1;
+        webSocketEndpoint = null;
+    }
+
+    /**
+     * Stops health checks, closes the event socket and releases the client's
+     * threads and pooled connections. The client cannot reconnect afterwards.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            if (healthChecks != null) {
+                healthChecks.cancel(false);
+            }
+            disconnectWebSocket();
+        }
+        scheduler.shutdownNow();
+        httpClient.dispatcher().executorService().shutdown();
+        httpClient.connectionPool().evictAll();
     }
 
     public void addMessageListener(String channel, Consumer<Models.Message> listener) {
-        messageListeners.computeIfAbsent(channel, k -> new ArrayList<>()).add(listener);
+        messageListeners.computeIfAbsent(channel, k -> new CopyOnWriteArrayList<>()).add(listener);
     }
 
     public void addEventListener(Consumer<Models.WebSocketEvent> listener) {
         eventListeners.add(listener);
     }
 
+    public void removeEventListener(Consumer<Models.WebSocketEvent> listener) {
+        eventListeners.remove(listener);
+    }
+
+    int eventListenerCount() {
+        return eventListeners.size();
+    }
+
+    /**
+     * Returns true only while the socket is open and the server has answered a ping
+     * (or sent any frame) within the heartbeat timeout, so half-open connections
+     * are reported as disconnected.
+     */
     public boolean isWebSocketConnected() {
-        return webSocketClient != null && webSocketClient.isOpen();
+        MessengerWebSocketClient client = webSocketClient;
+        return client != null && client.isOpen() && !client.isStale();
+    }
+
+    /**
+     * Smoothed ping/pong round-trip time of the event socket in milliseconds,
+     * or -1 if no pong has been received on the current connection yet.
+     */
+    public double getWebSocketLatencyMillis() {
+        return webSocketLatencyMillis;
+    }
+
+    /**
+     * Sets how often a ping is sent on the event socket. Zero disables heartbeats,
+     * leaving liveness to the WebSocket library's own lost-connection check.
+     * Takes effect on the next connection.
+     */
+    public void setHeartbeatInterval(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Heartbeat interval must not be negative");
+        }
+        this.heartbeatIntervalMillis = millis;
+    }
+
+    /**
+     * Sets how long the event socket may stay silent before it is considered lost,
+     * closed and (if enabled) reconnected. Must be longer than the heartbeat
+     * interval, otherwise {@link #connectWebSocket()} refuses to connect. Takes
+     * effect on the next connection.
+     */
+    public void setHeartbeatTimeout(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("Heartbeat timeout must be positive");
+        }
+        this.heartbeatTimeoutMillis = millis;
+    }
+
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+    }
+
+    public EndpointPool getEndpointPool() {
+        return endpointPool;
+    }
+
+    /**
+     * Feeds every message received over the event socket or returned by
+     * {@link #getMessages}, {@link #getMessage} and the send calls into the given
+     * index. Pass null to stop indexing.
+     */
+    public void setMessageIndex(MessageIndex messageIndex) {
+        this.messageIndex = messageIndex;
+    }
+
+    public MessageIndex getMessageIndex() {
+        return messageIndex;
+    }
+
+    private void fireEvent(Models.WebSocketEvent event) {
+        eventListeners.forEach(listener -> listener.accept(event));
+    }
+
+    private synchronized void scheduleReconnect(MessengerWebSocketClient lost) {
+        if (!autoReconnect || webSocketClient != lost) {
+            return;
+        }
+        long delay = Math.min(RECONNECT_BASE_DELAY_MILLIS << Math.min(reconnectAttempts, 16), RECONNECT_MAX_DELAY_MILLIS);
+        reconnectAttempts++;
+        fireEvent(new Models.WebSocketEvent("reconnecting", "WebSocket reconnecting in " + delay + " ms"));
+        scheduler.schedule(() -> {
+            synchronized (Client.this) {
+                if (webSocketClient == lost) {
+                    try {
+                        connectWebSocket();
+                    } catch (IllegalStateException e) {
+                        fireEvent(new Models.WebSocketEvent("error", "WebSocket error: " + e.getMessage()));
+                    }
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void onWebSocketOpened() {
+        reconnectAttempts = 0;
     }
 
     private class MessengerWebSocketClient extends WebSocketClient {
-        public MessengerWebSocketClient(URI serverUri) {
+        private final EndpointPool.Endpoint endpoint;
+        private final long intervalMillis = heartbeatIntervalMillis;
+        private final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatTimeoutMillis);
+        private volatile long lastSeenNanos = System.nanoTime();
+        private volatile long pingSentNanos;
+        private volatile boolean closedByClient;
+        private volatile ScheduledFuture<?> heartbeat;
+        private volatile boolean opened;
+
+        public MessengerWebSocketClient(URI serverUri, EndpointPool.Endpoint endpoint) {
             super(serverUri);
+            this.endpoint = endpoint;
+            if (intervalMillis > 0) {
+                // Liveness is tracked by our own heartbeat so that every ping can be timed.
+                setConnectionLostTimeout(0);
+            }
+        }
+
+        boolean isStale() {
+            // Without heartbeats an idle socket is not evidence of a dead one.
+            return intervalMillis > 0 && System.nanoTime() - lastSeenNanos > timeoutNanos;
+        }
+
+        void shutdown() {
+            closedByClient = true;
+            cancelHeartbeat();
+            close();
+        }
+
+        private void cancelHeartbeat() {
+            ScheduledFuture<?> task = heartbeat;
+            if (task != null) {
+                task.cancel(false);
+                heartbeat = null;
+            }
+        }
+
+        private void heartbeat() {
+            if (isStale()) {
+                cancelHeartbeat();
+                endpoint.markDown();
+                fireEvent(new Models.WebSocketEvent("timeout", "WebSocket heartbeat timed out"));
+                closeConnection(CloseFrame.ABNORMAL_CLOSE, "Heartbeat timeout");
+                return;
+            }
+            if (pingSentNanos != 0) {
+                // One ping in flight at a time, so a late pong is never timed against a newer ping.
+                return;
+            }
+            try {
+                pingSentNanos = System.nanoTime();
+                sendPing();
+            } catch (RuntimeException e) {
+                // Socket is already closing; onClose will take care of reconnecting.
+            }
         }
 
         @Override
         public void onOpen(ServerHandshake handshake) {
-            Models.WebSocketEvent event = new Models.WebSocketEvent("connected", "WebSocket connected successfully");
-            eventListeners.forEach(listener -> listener.accept(event));
+            opened = true;
+            lastSeenNanos = System.nanoTime();
+            onWebSocketOpened();
+            if (intervalMillis > 0 && !closedByClient) {
+                heartbeat = scheduler.scheduleAtFixedRate(
+                    this::heartbeat, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+            }
+            fireEvent(new Models.WebSocketEvent("connected", "WebSocket connected successfully"));
+        }
+
+        @Override
+        public void onWebsocketPong(WebSocket conn, Framedata f) {
+            long now = System.nanoTime();
+            lastSeenNanos = now;
+            long sent = pingSentNanos;
+            if (sent != 0) {
+                pingSentNanos = 0;
+                double sample = (now - sent) / 1_000_000.0;
+                double previous = webSocketLatencyMillis;
+                webSocketLatencyMillis = previous < 0 ? sample : previous + LATENCY_SMOOTHING * (sample - previous);
+            }
         }
 
         @Override
         public void onMessage(String message) {
+            lastSeenNanos = System.nanoTime();
             try {
                 Models.WebSocketEvent event = objectMapper.readValue(message, Models.WebSocketEvent.class);
                 
                 if ("message".equals(event.type) && "new".equals(event.action)) {
                     Models.Message msg = objectMapper.convertValue(event.data, Models.Message.class);
+                    MessageIndex index = messageIndex;
+                    if (index != null) {
+                        index.add(msg);
+                    }
                     List<Consumer<Models.Message>> listeners = messageListeners.get(msg.channel);
                     if (listeners != null) {
                         listeners.forEach(listener -> listener.accept(msg));
                     }
                 }
                 
-                eventListeners.forEach(listener -> listener.accept(event));
+                fireEvent(event);
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -630,14 +934,19 @@ public class Client {
 
         @Override
         public void onClose(int code, String reason, boolean remote) {
-            Models.WebSocketEvent event = new Models.WebSocketEvent("disconnected", "WebSocket disconnected: " + reason);
-            eventListeners.forEach(listener -> listener.accept(event));
+            cancelHeartbeat();
+            fireEvent(new Models.WebSocketEvent("disconnected", "WebSocket disconnected: " + reason));
+            if (!closedByClient) {
+                if (!opened) {
+                    endpoint.markDown();
+                }
+                scheduleReconnect(this);
+            }
         }
 
         @Override
         public void onError(Exception ex) {
-            Models.WebSocketEvent event = new Models.WebSocketEvent("error", "WebSocket error: " + ex.getMessage());
-            eventListeners.forEach(listener -> listener.accept(event));
+            fireEvent(new Models.WebSocketEvent("error", "WebSocket error: " + ex.getMessage()));
         }
     }
 
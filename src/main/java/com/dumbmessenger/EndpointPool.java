@@ -0,0 +1,340 @@
+package com.dumbmessenger;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.ForwardingSource;
+import okio.Okio;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads requests over several equivalent server nodes. Installed as an OkHttp
+ * interceptor, it rewrites every request aimed at the primary endpoint to the
+ * node picked by the {@link Selector}, marks nodes down on connection failures
+ * or 5xx responses, and retries on the remaining nodes. Idempotent requests and
+ * requests carrying an {@code Idempotency-Key} header are retried after any
+ * failure; other requests only when the connection could not be established,
+ * since the server cannot have seen them.
+ * Nodes that are down are probed periodically and put back once they answer.
+ */
+public class EndpointPool implements Interceptor {
+    private static final double LATENCY_SMOOTHING = 0.2;
+    private static final long PROBE_TIMEOUT_MILLIS = 2_000;
+
+    public interface Selector {
+        Endpoint select(List<Endpoint> candidates);
+    }
+
+    public static class Endpoint {
+        private final String url;
+        final AtomicInteger inFlight = new AtomicInteger();
+        private volatile double latencyMillis = -1;
+        private volatile boolean healthy = true;
+
+        Endpoint(String url) {
+            String withSlash = url.endsWith("/") ? url : url + "/";
+            // Match the canonical form OkHttp gives request URLs so prefixes compare equal.
+            HttpUrl parsed = HttpUrl.parse(withSlash);
+            this.url = parsed != null ? parsed.toString() : withSlash;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        /** Requests sent to this node whose response body has not been closed yet. */
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        /** Smoothed request latency in milliseconds, or -1 before the first sample. */
+        public double getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        void recordLatency(double sampleMillis) {
+            double previous = latencyMillis;
+            latencyMillis = previous < 0 ? sampleMillis : previous + LATENCY_SMOOTHING * (sampleMillis - previous);
+        }
+
+        void markDown() {
+            healthy = false;
+        }
+
+        void markUp() {
+            healthy = true;
+        }
+
+        @Override
+        public String toString() {
+            return url;
+        }
+    }
+
+    public static Selector roundRobin() {
+        AtomicInteger next = new AtomicInteger();
+        return candidates -> candidates.get(Math.floorMod(next.getAndIncrement(), candidates.size()));
+    }
+
+    public static Selector leastInFlight() {
+        Selector tieBreaker = roundRobin();
+        return candidates -> {
+            int min = Integer.MAX_VALUE;
+            List<Endpoint> best = new ArrayList<>();
+            for (Endpoint endpoint : candidates) {
+                int load = endpoint.getInFlight();
+                if (load < min) {
+                    min = load;
+                    best.clear();
+                }
+                if (load == min) {
+                    best.add(endpoint);
+                }
+            }
+            return tieBreaker.select(best);
+        };
+    }
+
+    /**
+     * Picks the node with the lowest smoothed latency weighted by its in-flight
+     * requests. Nodes without a latency sample yet are tried first.
+     */
+    public static Selector latencyEwma() {
+        return candidates -> {
+            Endpoint best = null;
+            double bestScore = Double.MAX_VALUE;
+            for (Endpoint endpoint : candidates) {
+                double latency = Math.max(endpoint.getLatencyMillis(), 0);
+                double score = latency * (endpoint.getInFlight() + 1);
+                if (score < bestScore) {
+                    bestScore = score;
+                    best = endpoint;
+                }
+            }
+            return best;
+        };
+    }
+
+    private final List<Endpoint> endpoints;
+    private final Selector selector;
+
+    public EndpointPool(List<String> urls, Selector selector) {
+        if (urls == null || urls.isEmpty()) {
+            throw new IllegalArgumentException("At least one endpoint is required");
+        }
+        List<Endpoint> list = new ArrayList<>();
+        for (String url : urls) {
+            list.add(new Endpoint(url));
+        }
+        this.endpoints = Collections.unmodifiableList(list);
+        this.selector = selector;
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    public Endpoint getPrimary() {
+        return endpoints.get(0);
+    }
+
+    /** Picks a node among the healthy ones, or among all of them if every node is down. */
+    public Endpoint select() {
+        return select(Collections.emptyList());
+    }
+
+    private Endpoint select(List<Endpoint> exclude) {
+        List<Endpoint> healthy = new ArrayList<>();
+        List<Endpoint> remaining = new ArrayList<>();
+        for (Endpoint endpoint : endpoints) {
+            if (exclude.contains(endpoint)) {
+                continue;
+            }
+            remaining.add(endpoint);
+            if (endpoint.isHealthy()) {
+                healthy.add(endpoint);
+            }
+        }
+        if (remaining.isEmpty()) {
+            return null;
+        }
+        return selector.select(healthy.isEmpty() ? remaining : healthy);
+    }
+
+    /**
+     * Probes every node that is marked down with a plain GET on its base URL; any
+     * non-5xx response brings it back into rotation. Probes run asynchronously on
+     * OkHttp's dispatcher with short timeouts, so the scheduler thread is never
+     * blocked by an unresponsive node. Cancel the returned future to stop probing.
+     */
+    public ScheduledFuture<?> startHealthChecks(OkHttpClient httpClient, ScheduledExecutorService scheduler,
+                                                long intervalMillis) {
+        OkHttpClient probeClient = httpClient.newBuilder()
+            .connectTimeout(PROBE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+            .readTimeout(PROBE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+            .callTimeout(PROBE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+            .build();
+        return scheduler.scheduleWithFixedDelay(() -> {
+            for (Endpoint endpoint : endpoints) {
+                if (!endpoint.isHealthy()) {
+                    probe(probeClient, endpoint);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static void probe(OkHttpClient probeClient, Endpoint endpoint) {
+        Request probe = new Request.Builder()
+            .url(endpoint.getUrl())
+            .tag(Endpoint.class, endpoint)
+            .get()
+            .build();
+        try {
+            probeClient.newCall(probe).enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    // Still down; try again on the next round.
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    try (Response r = response) {
+                        if (r.code() < 500) {
+                            endpoint.markUp();
+                        }
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // Dispatcher shut down with the client.
+        }
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        Endpoint pinned = request.tag(Endpoint.class);
+        if (pinned != null) {
+            return execute(chain, request, pinned);
+        }
+
+        String url = request.url().toString();
+        String primary = getPrimary().getUrl();
+        if (!url.startsWith(primary)) {
+            return chain.proceed(request);
+        }
+        String path = url.substring(primary.length());
+        boolean retryable = isIdempotent(request.method()) || request.header("Idempotency-Key") != null;
+
+        List<Endpoint> tried = new ArrayList<>();
+        IOException lastError = null;
+        Endpoint endpoint;
+        while ((endpoint = select(tried)) != null) {
+            tried.add(endpoint);
+            boolean lastNode = tried.size() == endpoints.size();
+            Request routed = request.newBuilder().url(endpoint.getUrl() + path).build();
+            try {
+                Response response = execute(chain, routed, endpoint);
+                if (response.code() >= 500 && retryable && !lastNode) {
+                    response.close();
+                    continue;
+                }
+                return response;
+            } catch (IOException e) {
+                if (lastNode || !(retryable || isConnectFailure(e))) {
+                    throw e;
+                }
+                lastError = e;
+            }
+        }
+        throw lastError != null ? lastError : new IOException("No endpoint available");
+    }
+
+    private Response execute(Chain chain, Request request, Endpoint endpoint) throws IOException {
+        endpoint.inFlight.incrementAndGet();
+        long start = System.nanoTime();
+        Response response;
+        try {
+            response = chain.proceed(request);
+        } catch (IOException | RuntimeException e) {
+            endpoint.inFlight.decrementAndGet();
+            if (e instanceof IOException) {
+                endpoint.markDown();
+            }
+            throw e;
+        }
+        if (response.code() >= 500) {
+            endpoint.markDown();
+        } else {
+            endpoint.recordLatency((System.nanoTime() - start) / 1_000_000.0);
+        }
+        return releaseOnClose(response, endpoint);
+    }
+
+    /**
+     * Keeps the request counted against its node until the caller has read and
+     * closed the body, not just until the headers arrived.
+     */
+    private static Response releaseOnClose(Response response, Endpoint endpoint) {
+        ResponseBody body = response.body();
+        if (body == null) {
+            endpoint.inFlight.decrementAndGet();
+            return response;
+        }
+        AtomicBoolean released = new AtomicBoolean();
+        ForwardingSource source = new ForwardingSource(body.source()) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if (released.compareAndSet(false, true)) {
+                        endpoint.inFlight.decrementAndGet();
+                    }
+                }
+            }
+        };
+        return response.newBuilder()
+            .body(ResponseBody.create(Okio.buffer(source), body.contentType(), body.contentLength()))
+            .build();
+    }
+
+    /** True for failures that happen before any byte of the request reaches the server. */
+    private static boolean isConnectFailure(IOException e) {
+        return e instanceof ConnectException || e instanceof NoRouteToHostException || e instanceof UnknownHostException;
+    }
+
+    private static boolean isIdempotent(String method) {
+        switch (method) {
+            case "GET":
+            case "HEAD":
+            case "PUT":
+            case "DELETE":
+            case "OPTIONS":
+                return true;
+            default:
+                return false;
+        }
+    }
+}
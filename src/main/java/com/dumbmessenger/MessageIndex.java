@@ -0,0 +1,829 @@
+package com.dumbmessenger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process full-text index over messages the client has seen. Message text is
+ * tokenized into an inverted index; sender, channel and timestamp are kept as
+ * facets for filtering. New messages go into a small mutable buffer; once full it
+ * is swapped for an empty one and handed to a background thread that seals it
+ * into an immutable segment, merges small adjacent segments (never past a size
+ * cap) and drops the oldest segments when the index grows past its document
+ * limit. The heavy work happens outside the lock, so {@link #add} and searches
+ * only wait for the short swap-in.
+ *
+ * <p>Queries are whitespace-separated words that must all match; a trailing
+ * {@code *} turns a word into a prefix match over at most
+ * {@value #MAX_PREFIX_TERMS} words per segment, alphabetically first. Results are
+ * message ids, most recently indexed first. Every segment and buffer keeps its
+ * timestamp range, so a time-bounded search skips the ones outside it and, when
+ * messages were indexed in timestamp order, narrows the rest by binary search.
+ */
+public class MessageIndex {
+    private static final int DEFAULT_SEGMENT_SIZE = 16_384;
+    private static final int DEFAULT_MAX_SEGMENTS = 8;
+    private static final int DEFAULT_MAX_DOCUMENTS = 2_000_000;
+    private static final long MAINTENANCE_KEEP_ALIVE_MILLIS = 30_000;
+    private static final int EVICTION_CHUNK = 512;
+    private static final int MAX_PREFIX_TERMS = 64;
+    // Facet terms start with control characters the tokenizer never emits.
+    private static final String CHANNEL_TERM = "\u0001";
+    private static final String FROM_TERM = "\u0002";
+
+    private final int segmentSize;
+    private final int maxSegments;
+    private final int maxDocuments;
+    private final int maxSegmentDocs;
+    private final List<Segment> segments = new ArrayList<>();
+    // Full buffers waiting to be sealed, oldest first. Still searchable.
+    private final List<Buffer> sealing = new ArrayList<>();
+    private final DocTable docsById = new DocTable();
+    private final ThreadPoolExecutor maintenance;
+    private Buffer buffer;
+    private int nextDoc;
+    private int generation;
+    private boolean maintenanceScheduled;
+    // Segment dropped from search whose ids are being removed from docsById in chunks.
+    private Segment evicting;
+    private int evictingNext;
+
+    public MessageIndex() {
+        this(DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS, DEFAULT_MAX_DOCUMENTS);
+    }
+
+    public MessageIndex(int segmentSize, int maxSegments, int maxDocuments) {
+        this(segmentSize, maxSegments, maxDocuments, Math.max(segmentSize, maxDocuments / 32));
+    }
+
+    /**
+     * @param maxSegmentDocs largest segment a merge may produce; this bounds how many
+     *                       documents are dropped at once when the oldest segment is evicted
+     */
+    public MessageIndex(int segmentSize, int maxSegments, int maxDocuments, int maxSegmentDocs) {
+        if (segmentSize <= 0 || maxSegments <= 0 || maxDocuments < segmentSize || maxSegmentDocs < segmentSize) {
+            throw new IllegalArgumentException("Invalid index limits");
+        }
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.maxDocuments = maxDocuments;
+        this.maxSegmentDocs = maxSegmentDocs;
+        this.buffer = new Buffer(0);
+        this.maintenance = new ThreadPoolExecutor(1, 1, MAINTENANCE_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "dumbmessenger-index");
+                thread.setDaemon(true);
+                return thread;
+            });
+        this.maintenance.allowCoreThreadTimeOut(true);
+    }
+
+    /** Indexes a message, replacing any earlier version with the same id. */
+    public synchronized void add(Models.Message message) {
+        if (message == null || message.id == null) {
+            return;
+        }
+        delete(message.id);
+
+        int doc = nextDoc++;
+        docsById.put(message.id, doc);
+        List<String> terms = message.encrypted ? new ArrayList<>() : tokenize(message.text);
+        if (message.channel != null) {
+            terms.add(CHANNEL_TERM + message.channel);
+        }
+        if (message.from != null) {
+            terms.add(FROM_TERM + message.from);
+        }
+        buffer.add(message.id, message.ts, terms);
+
+        if (buffer.size >= segmentSize) {
+            sealing.add(buffer);
+            buffer = new Buffer(nextDoc);
+            if (!maintenanceScheduled) {
+                maintenanceScheduled = true;
+                maintenance.execute(this::maintain);
+            }
+        }
+    }
+
+    public synchronized void addAll(Collection<Models.Message> messages) {
+        if (messages != null) {
+            messages.forEach(this::add);
+        }
+    }
+
+    public synchronized boolean remove(String messageId) {
+        return delete(messageId);
+    }
+
+    public synchronized int size() {
+        return docsById.size();
+    }
+
+    public synchronized void clear() {
+        segments.clear();
+        sealing.clear();
+        docsById.clear();
+        buffer = new Buffer(nextDoc);
+        evicting = null;
+        generation++;
+    }
+
+    public List<String> search(String query, int limit) {
+        return search(query, null, null, Long.MIN_VALUE, Long.MAX_VALUE, limit);
+    }
+
+    /**
+     * Returns up to {@code limit} ids of messages matching every word of the query
+     * and the given facets. {@code channel} and {@code from} may be null. A null or
+     * blank query matches all messages within the facets; a query without any
+     * searchable word, such as {@code "!!!"}, matches nothing.
+     */
+    public synchronized List<String> search(String query, String channel, String from,
+                                            long sinceTs, long untilTs, int limit) {
+        List<String> results = new ArrayList<>();
+        if (limit <= 0) {
+            return results;
+        }
+
+        List<String> terms = new ArrayList<>();
+        List<Boolean> prefixes = new ArrayList<>();
+        parseQuery(query, terms, prefixes);
+        if (terms.isEmpty() && query != null && !query.isBlank()) {
+            return results;
+        }
+        if (channel != null) {
+            terms.add(CHANNEL_TERM + channel);
+            prefixes.add(false);
+        }
+        if (from != null) {
+            terms.add(FROM_TERM + from);
+            prefixes.add(false);
+        }
+
+        buffer.collect(terms, prefixes, sinceTs, untilTs, results, limit);
+        for (int i = sealing.size() - 1; i >= 0 && results.size() < limit; i--) {
+            sealing.get(i).collect(terms, prefixes, sinceTs, untilTs, results, limit);
+        }
+        for (int i = segments.size() - 1; i >= 0 && results.size() < limit; i--) {
+            segments.get(i).collect(terms, prefixes, sinceTs, untilTs, results, limit);
+        }
+        return results;
+    }
+
+    private boolean delete(String messageId) {
+        Integer doc = docsById.remove(messageId);
+        if (doc == null) {
+            return false;
+        }
+        if (doc >= buffer.firstDoc) {
+            buffer.deleted.set(doc - buffer.firstDoc);
+            return true;
+        }
+        for (Buffer frozen : sealing) {
+            if (doc >= frozen.firstDoc && doc < frozen.firstDoc + frozen.size) {
+                frozen.deleted.set(doc - frozen.firstDoc);
+                return true;
+            }
+        }
+        for (Segment segment : segments) {
+            int position = Arrays.binarySearch(segment.docs, doc);
+            if (position >= 0) {
+                segment.deleted.set(position);
+                return true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs on the maintenance thread: evicts the oldest segments, seals waiting
+     * buffers, then merges segments one pair at a time. Each step snapshots its
+     * inputs under the lock, builds the new segment without it, and swaps the result
+     * in only if the inputs are still in place, carrying over deletions that happened
+     * in the meantime.
+     */
+    private void maintain() {
+        while (true) {
+            if (evictStep()) {
+                // Give waiting adds and searches a turn between chunks.
+                Thread.yield();
+                continue;
+            }
+            Buffer frozen = null;
+            Segment older = null;
+            Segment newer = null;
+            BitSet olderDeleted;
+            BitSet newerDeleted = null;
+            int expected;
+            synchronized (this) {
+                expected = generation;
+                if (!sealing.isEmpty()) {
+                    frozen = sealing.get(0);
+                    olderDeleted = (BitSet) frozen.deleted.clone();
+                } else {
+                    int pair = mergeCandidate();
+                    if (pair < 0) {
+                        maintenanceScheduled = false;
+                        return;
+                    }
+                    older = segments.get(pair);
+                    newer = segments.get(pair + 1);
+                    olderDeleted = (BitSet) older.deleted.clone();
+                    newerDeleted = (BitSet) newer.deleted.clone();
+                }
+            }
+
+            if (frozen != null) {
+                int[] mapping = liveMapping(olderDeleted, frozen.size, 0);
+                Segment sealed = frozen.seal(mapping);
+                synchronized (this) {
+                    if (expected == generation && !sealing.isEmpty() && sealing.get(0) == frozen) {
+                        carryDeletions(frozen.deleted, olderDeleted, mapping, sealed);
+                        sealing.remove(0);
+                        segments.add(sealed);
+                    }
+                }
+            } else {
+                int[] olderMap = liveMapping(olderDeleted, older.count(), 0);
+                int[] newerMap = liveMapping(newerDeleted, newer.count(), older.count() - olderDeleted.cardinality());
+                Segment merged = Segment.merge(older, olderMap, newer, newerMap);
+                synchronized (this) {
+                    int pair = segments.indexOf(older);
+                    if (expected == generation && pair >= 0 && pair + 1 < segments.size()
+                            && segments.get(pair + 1) == newer) {
+                        carryDeletions(older.deleted, olderDeleted, olderMap, merged);
+                        carryDeletions(newer.deleted, newerDeleted, newerMap, merged);
+                        segments.set(pair, merged);
+                        segments.remove(pair + 1);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Adjacent pair with the fewest live documents that still fits the size cap, or -1. */
+    private int mergeCandidate() {
+        if (segments.size() <= maxSegments) {
+            return -1;
+        }
+        int best = -1;
+        int bestSize = Integer.MAX_VALUE;
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            int size = segments.get(i).liveCount() + segments.get(i + 1).liveCount();
+            if (size <= maxSegmentDocs && size < bestSize) {
+                bestSize = size;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /** New positions of the documents not marked in {@code deleted}, starting at {@code offset}; -1 for dropped ones. */
+    private static int[] liveMapping(BitSet deleted, int count, int offset) {
+        int[] mapping = new int[count];
+        int next = offset;
+        for (int i = 0; i < count; i++) {
+            mapping[i] = deleted.get(i) ? -1 : next++;
+        }
+        return mapping;
+    }
+
+    private static void carryDeletions(BitSet current, BitSet snapshot, int[] mapping, Segment target) {
+        for (int i = current.nextSetBit(0); i >= 0; i = current.nextSetBit(i + 1)) {
+            if (!snapshot.get(i)) {
+                target.deleted.set(mapping[i]);
+            }
+        }
+    }
+
+    /**
+     * Drops the oldest segment from search once the index is over its limit, then
+     * forgets its ids a chunk at a time, skipping ids that have been re-added since.
+     * Returns false when there is nothing to evict.
+     */
+    private synchronized boolean evictStep() {
+        if (evicting == null) {
+            if (docsById.size() <= maxDocuments || segments.isEmpty()) {
+                return false;
+            }
+            evicting = segments.remove(0);
+            evictingNext = 0;
+        }
+        Segment segment = evicting;
+        int end = Math.min(evictingNext + EVICTION_CHUNK, segment.ids.length);
+        for (int i = evictingNext; i < end; i++) {
+            docsById.remove(segment.ids[i], segment.docs[i]);
+        }
+        evictingNext = end;
+        if (end == segment.ids.length) {
+            evicting = null;
+        }
+        return true;
+    }
+
+    private static void parseQuery(String query, List<String> terms, List<Boolean> prefixes) {
+        if (query == null || query.isBlank()) {
+            return;
+        }
+        for (String word : query.trim().split("\\s+")) {
+            boolean prefix = word.endsWith("*");
+            List<String> tokens = tokenize(prefix ? word.substring(0, word.length() - 1) : word);
+            for (int i = 0; i < tokens.size(); i++) {
+                terms.add(tokens.get(i));
+                prefixes.add(prefix && i == tokens.size() - 1);
+            }
+        }
+    }
+
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /** Columns shared by the mutable buffer and sealed segments, addressed by local position. */
+    private abstract static class Columns {
+        final BitSet deleted = new BitSet();
+        long minTs = Long.MAX_VALUE;
+        long maxTs = Long.MIN_VALUE;
+        // True while timestamps never decrease with position, so ranges can be binary searched.
+        boolean tsSorted = true;
+
+        abstract int count();
+
+        abstract String id(int position);
+
+        abstract long ts(int position);
+
+        /** Sorted local positions in {@code [lo, hi)} for a term, or null if it does not occur there. */
+        abstract Postings postings(String term, boolean prefix, int lo, int hi);
+
+        void trackTs(long ts, int position) {
+            if (position > 0 && ts < ts(position - 1)) {
+                tsSorted = false;
+            }
+            minTs = Math.min(minTs, ts);
+            maxTs = Math.max(maxTs, ts);
+        }
+
+        /** First position whose timestamp is at least {@code ts}; requires {@link #tsSorted}. */
+        private int firstAtOrAfter(long ts) {
+            int lo = 0;
+            int hi = count();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ts(mid) < ts) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        /**
+         * Walks the shortest postings list newest first and probes the others by binary
+         * search, so a query stops as soon as {@code limit} hits are found.
+         */
+        void collect(List<String> terms, List<Boolean> prefixes, long sinceTs, long untilTs,
+                     List<String> results, int limit) {
+            if (count() == 0 || maxTs < sinceTs || minTs > untilTs) {
+                return;
+            }
+            int lo = 0;
+            int hi = count();
+            if (tsSorted) {
+                lo = sinceTs <= minTs ? 0 : firstAtOrAfter(sinceTs);
+                hi = untilTs >= maxTs ? count() : firstAtOrAfter(untilTs + 1);
+            }
+            if (terms.isEmpty()) {
+                for (int position = hi - 1; position >= lo && results.size() < limit; position--) {
+                    accept(position, sinceTs, untilTs, results);
+                }
+                return;
+            }
+
+            Postings[] lists = new Postings[terms.size()];
+            for (int i = 0; i < lists.length; i++) {
+                lists[i] = postings(terms.get(i), prefixes.get(i), lo, hi);
+                if (lists[i] == null) {
+                    return;
+                }
+            }
+            Arrays.sort(lists, Comparator.comparingInt(Postings::length));
+
+            Postings driver = lists[0];
+            int[] bounds = new int[lists.length];
+            for (int k = 1; k < lists.length; k++) {
+                bounds[k] = lists[k].to;
+            }
+            candidates:
+            for (int i = driver.to - 1; i >= driver.from && results.size() < limit; i--) {
+                int position = driver.values[i];
+                for (int k = 1; k < lists.length; k++) {
+                    int found = Arrays.binarySearch(lists[k].values, lists[k].from, bounds[k], position);
+                    bounds[k] = found < 0 ? -found - 1 : found;
+                    if (found < 0) {
+                        continue candidates;
+                    }
+                }
+                accept(position, sinceTs, untilTs, results);
+            }
+        }
+
+        private void accept(int position, long sinceTs, long untilTs, List<String> results) {
+            long ts = ts(position);
+            if (!deleted.get(position) && ts >= sinceTs && ts <= untilTs) {
+                results.add(id(position));
+            }
+        }
+    }
+
+    private static final class Buffer extends Columns {
+        final int firstDoc;
+        final List<String> ids = new ArrayList<>();
+        long[] timestamps = new long[64];
+        final Map<String, IntList> postings = new HashMap<>();
+        // Same terms in order, for prefix lookups; only touched when a term first appears.
+        final NavigableSet<String> sortedTerms = new TreeSet<>();
+        int size;
+
+        Buffer(int firstDoc) {
+            this.firstDoc = firstDoc;
+        }
+
+        void add(String id, long ts, List<String> terms) {
+            if (size == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+            }
+            int position = size++;
+            ids.add(id);
+            timestamps[position] = ts;
+            trackTs(ts, position);
+            for (String token : terms) {
+                IntList list = postings.get(token);
+                if (list == null) {
+                    list = new IntList();
+                    postings.put(token, list);
+                    sortedTerms.add(token);
+                }
+                if (list.size == 0 || list.values[list.size - 1] != position) {
+                    list.add(position);
+                }
+            }
+        }
+
+        /**
+         * Builds a segment from this buffer, keeping the documents that {@code mapping}
+         * gives a position. The buffer must no longer receive additions.
+         */
+        Segment seal(int[] mapping) {
+            int live = 0;
+            int[] docs = new int[size];
+            String[] liveIds = new String[size];
+            long[] liveTimestamps = new long[size];
+            for (int i = 0; i < size; i++) {
+                if (mapping[i] >= 0) {
+                    docs[live] = firstDoc + i;
+                    liveIds[live] = ids.get(i);
+                    liveTimestamps[live] = timestamps[i];
+                    live++;
+                }
+            }
+
+            String[] sorted = postings.keySet().toArray(new String[0]);
+            Arrays.sort(sorted);
+            List<String> terms = new ArrayList<>(sorted.length);
+            IntList starts = new IntList();
+            IntList flat = new IntList();
+            for (String term : sorted) {
+                IntList list = postings.get(term);
+                int before = flat.size;
+                for (int k = 0; k < list.size; k++) {
+                    int target = mapping[list.values[k]];
+                    if (target >= 0) {
+                        flat.add(target);
+                    }
+                }
+                if (flat.size > before) {
+                    terms.add(term);
+                    starts.add(before);
+                }
+            }
+            starts.add(flat.size);
+
+            return new Segment(Arrays.copyOf(docs, live), Arrays.copyOf(liveIds, live),
+                Arrays.copyOf(liveTimestamps, live), terms.toArray(new String[0]),
+                Arrays.copyOf(starts.values, starts.size), Arrays.copyOf(flat.values, flat.size));
+        }
+
+        @Override
+        int count() {
+            return size;
+        }
+
+        @Override
+        String id(int position) {
+            return ids.get(position);
+        }
+
+        @Override
+        long ts(int position) {
+            return timestamps[position];
+        }
+
+        @Override
+        Postings postings(String term, boolean prefix, int lo, int hi) {
+            if (!prefix) {
+                IntList list = postings.get(term);
+                return list == null ? null : Postings.slice(list.values, 0, list.size, lo, hi);
+            }
+            IntList union = new IntList();
+            int expanded = 0;
+            for (String candidate : sortedTerms.tailSet(term, true)) {
+                if (!candidate.startsWith(term) || expanded++ == MAX_PREFIX_TERMS) {
+                    break;
+                }
+                IntList list = postings.get(candidate);
+                union.addRange(list.values, 0, list.size, lo, hi);
+            }
+            return union.size == 0 ? null : union.sortedDistinct();
+        }
+    }
+
+    private static final class Segment extends Columns {
+        final int[] docs;
+        final String[] ids;
+        final long[] timestamps;
+        final String[] terms;
+        final int[] starts;
+        final int[] flat;
+
+        Segment(int[] docs, String[] ids, long[] timestamps, String[] terms, int[] starts, int[] flat) {
+            this.docs = docs;
+            this.ids = ids;
+            this.timestamps = timestamps;
+            this.terms = terms;
+            this.starts = starts;
+            this.flat = flat;
+            for (int i = 0; i < timestamps.length; i++) {
+                trackTs(timestamps[i], i);
+            }
+        }
+
+        int liveCount() {
+            return docs.length - deleted.cardinality();
+        }
+
+        /**
+         * Merges two adjacent segments, keeping the documents the mappings give a
+         * position. {@code older} must come first.
+         */
+        static Segment merge(Segment older, int[] olderMap, Segment newer, int[] newerMap) {
+            int live = 0;
+            for (int target : olderMap) {
+                live += target >= 0 ? 1 : 0;
+            }
+            for (int target : newerMap) {
+                live += target >= 0 ? 1 : 0;
+            }
+
+            int[] docs = new int[live];
+            String[] ids = new String[live];
+            long[] timestamps = new long[live];
+            older.copyLive(olderMap, docs, ids, timestamps);
+            newer.copyLive(newerMap, docs, ids, timestamps);
+
+            List<String> terms = new ArrayList<>();
+            IntList starts = new IntList();
+            IntList flat = new IntList();
+            int i = 0;
+            int j = 0;
+            while (i < older.terms.length || j < newer.terms.length) {
+                int cmp = i == older.terms.length ? 1
+                    : j == newer.terms.length ? -1
+                    : older.terms[i].compareTo(newer.terms[j]);
+                int before = flat.size;
+                String term = cmp <= 0 ? older.terms[i] : newer.terms[j];
+                if (cmp <= 0) {
+                    older.copyPostings(i++, olderMap, flat);
+                }
+                if (cmp >= 0) {
+                    newer.copyPostings(j++, newerMap, flat);
+                }
+                if (flat.size > before) {
+                    terms.add(term);
+                    starts.add(before);
+                }
+            }
+            starts.add(flat.size);
+
+            return new Segment(docs, ids, timestamps, terms.toArray(new String[0]),
+                Arrays.copyOf(starts.values, starts.size),
+                Arrays.copyOf(flat.values, flat.size));
+        }
+
+        private void copyLive(int[] mapping, int[] docs, String[] ids, long[] timestamps) {
+            for (int i = 0; i < mapping.length; i++) {
+                int target = mapping[i];
+                if (target >= 0) {
+                    docs[target] = this.docs[i];
+                    ids[target] = this.ids[i];
+                    timestamps[target] = this.timestamps[i];
+                }
+            }
+        }
+
+        private void copyPostings(int term, int[] mapping, IntList out) {
+            for (int k = starts[term]; k < starts[term + 1]; k++) {
+                int target = mapping[flat[k]];
+                if (target >= 0) {
+                    out.add(target);
+                }
+            }
+        }
+
+        @Override
+        int count() {
+            return docs.length;
+        }
+
+        @Override
+        String id(int position) {
+            return ids[position];
+        }
+
+        @Override
+        long ts(int position) {
+            return timestamps[position];
+        }
+
+        @Override
+        Postings postings(String term, boolean prefix, int lo, int hi) {
+            int index = Arrays.binarySearch(terms, term);
+            if (!prefix) {
+                return index < 0 ? null : Postings.slice(flat, starts[index], starts[index + 1], lo, hi);
+            }
+            int first = index < 0 ? -index - 1 : index;
+            int last = first;
+            while (last < terms.length && last - first < MAX_PREFIX_TERMS && terms[last].startsWith(term)) {
+                last++;
+            }
+            if (first == last) {
+                return null;
+            }
+            if (last == first + 1) {
+                return Postings.slice(flat, starts[first], starts[last], lo, hi);
+            }
+            IntList union = new IntList();
+            for (int t = first; t < last; t++) {
+                union.addRange(flat, starts[t], starts[t + 1], lo, hi);
+            }
+            return union.size == 0 ? null : union.sortedDistinct();
+        }
+    }
+
+    /**
+     * Id to document number map split over many small hash maps, so growing it
+     * rehashes one small shard at a time instead of millions of entries in one add.
+     */
+    private static final class DocTable {
+        private static final int SHARDS = 64;
+
+        private final List<Map<String, Integer>> shards = new ArrayList<>(SHARDS);
+        private int size;
+
+        DocTable() {
+            for (int i = 0; i < SHARDS; i++) {
+                shards.add(new HashMap<>());
+            }
+        }
+
+        private Map<String, Integer> shard(String id) {
+            int hash = id.hashCode();
+            return shards.get((hash ^ (hash >>> 16)) & (SHARDS - 1));
+        }
+
+        void put(String id, int doc) {
+            if (shard(id).put(id, doc) == null) {
+                size++;
+            }
+        }
+
+        Integer remove(String id) {
+            Integer doc = shard(id).remove(id);
+            if (doc != null) {
+                size--;
+            }
+            return doc;
+        }
+
+        void remove(String id, int doc) {
+            if (shard(id).remove(id, doc)) {
+                size--;
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            for (int i = 0; i < SHARDS; i++) {
+                shards.set(i, new HashMap<>());
+            }
+            size = 0;
+        }
+    }
+
+    /** A sorted run of local positions, usually a view into a segment's postings array. */
+    private static final class Postings {
+        final int[] values;
+        final int from;
+        final int to;
+
+        Postings(int[] values, int from, int to) {
+            this.values = values;
+            this.from = from;
+            this.to = to;
+        }
+
+        int length() {
+            return to - from;
+        }
+
+        /** The part of the sorted run {@code values[from, to)} that lies in {@code [lo, hi)}, or null if none. */
+        static Postings slice(int[] values, int from, int to, int lo, int hi) {
+            int start = lowerBound(values, from, to, lo);
+            int end = lowerBound(values, start, to, hi);
+            return start == end ? null : new Postings(values, start, end);
+        }
+
+        static int lowerBound(int[] values, int from, int to, int key) {
+            int found = Arrays.binarySearch(values, from, to, key);
+            return found < 0 ? -found - 1 : found;
+        }
+    }
+
+    private static final class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        /** Appends the values of the sorted run {@code source[from, to)} that lie in {@code [lo, hi)}. */
+        void addRange(int[] source, int from, int to, int lo, int hi) {
+            int start = Postings.lowerBound(source, from, to, lo);
+            addAll(source, start, Postings.lowerBound(source, start, to, hi) - start);
+        }
+
+        void addAll(int[] source, int offset, int length) {
+            if (size + length > values.length) {
+                values = Arrays.copyOf(values, Math.max(values.length * 2, size + length));
+            }
+            System.arraycopy(source, offset, values, size, length);
+            size += length;
+        }
+
+        Postings sortedDistinct() {
+            int[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            int n = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (n == 0 || sorted[n - 1] != sorted[i]) {
+                    sorted[n++] = sorted[i];
+                }
+            }
+            return new Postings(sorted, 0, n);
+        }
+    }
+}
@@ -0,0 +1,457 @@
+package com.dumbmessenger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Compact, bounded window of messages for long-lived timeline caches. Instead of
+ * one {@link Models.Message} per entry, fields are kept in parallel primitive
+ * arrays: text, reply ids and non-UUID ids as offset/length references into one
+ * shared UTF-8 byte heap, UUID-shaped ids as two longs, channel and sender as
+ * codes into a reference-counted name table, and flags packed into a byte.
+ * {@link Models.Message} objects are only built when an entry is read through
+ * {@link #get(int)}.
+ *
+ * <p>Entries are ordered oldest first. {@link #add} appends and evicts the oldest
+ * entry once the window is full; {@link #addFirst} prepends older history while
+ * there is room. {@code replyToMessage} is not retained, only the {@code replyTo}
+ * id. Not thread-safe.
+ */
+public class MessageWindow extends AbstractList<Models.Message> {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int INITIAL_HEAP = 4096;
+    private static final int MAX_HEAP = Integer.MAX_VALUE - 8;
+    private static final byte ENCRYPTED = 1;
+    private static final byte UUID_ID = 2;
+    // Heap reference for a null string; otherwise offset << 32 | length.
+    private static final long NULL_REF = -1;
+
+    private final int capacity;
+    private final Map<String, Integer> nameCodes = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private final Deque<Integer> freeNameCodes = new ArrayDeque<>();
+    private int[] nameRefs = new int[16];
+
+    // For UUID_ID entries the id's bits, otherwise idHigh is a heap reference.
+    private long[] idHigh;
+    private long[] idLow;
+    private long[] texts;
+    private long[] replyTos;
+    private int[] channels;
+    private int[] senders;
+    private long[] timestamps;
+    private byte[] flags;
+    private Object[] attachments;
+    private int head;
+    private int size;
+
+    private byte[] heap = new byte[INITIAL_HEAP];
+    private int heapEnd;
+    private int heapLive;
+
+    public MessageWindow(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        allocate(Math.min(capacity, INITIAL_CAPACITY));
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /** Appends a message as the newest entry, evicting the oldest one if the window is full. */
+    @Override
+    public boolean add(Models.Message message) {
+        if (size == capacity) {
+            release(head);
+            head = (head + 1) % texts.length;
+            size--;
+        } else {
+            ensureRoom();
+        }
+        store(slot(size), message);
+        size++;
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Prepends an older message. Returns false without storing it if the window is
+     * already full, so that paging back through history never evicts newer entries.
+     */
+    public boolean addFirst(Models.Message message) {
+        if (size == capacity) {
+            return false;
+        }
+        ensureRoom();
+        int first = (head - 1 + texts.length) % texts.length;
+        store(first, message);
+        head = first;
+        size++;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Models.Message> messages) {
+        for (Models.Message message : messages) {
+            add(message);
+        }
+        return !messages.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(attachments, null);
+        nameCodes.clear();
+        names.clear();
+        freeNameCodes.clear();
+        nameRefs = new int[16];
+        heap = new byte[INITIAL_HEAP];
+        heapEnd = 0;
+        heapLive = 0;
+        head = 0;
+        size = 0;
+        modCount++;
+    }
+
+    /** Materializes the entry at {@code index}, where 0 is the oldest. */
+    @Override
+    public Models.Message get(int index) {
+        int slot = checkedSlot(index);
+        Models.Message message = new Models.Message();
+        message.id = idAt(slot);
+        message.from = name(senders[slot]);
+        message.channel = name(channels[slot]);
+        message.text = string(texts[slot]);
+        message.ts = timestamps[slot];
+        message.replyTo = string(replyTos[slot]);
+        message.encrypted = (flags[slot] & ENCRYPTED) != 0;
+        Object attachment = attachments[slot];
+        if (attachment instanceof Models.FileAttachment) {
+            message.file = (Models.FileAttachment) attachment;
+        } else if (attachment instanceof Models.VoiceAttachment) {
+            message.voice = (Models.VoiceAttachment) attachment;
+        } else if (attachment instanceof Object[]) {
+            message.file = (Models.FileAttachment) ((Object[]) attachment)[0];
+            message.voice = (Models.VoiceAttachment) ((Object[]) attachment)[1];
+        }
+        return message;
+    }
+
+    public String id(int index) {
+        return idAt(checkedSlot(index));
+    }
+
+    public String channel(int index) {
+        return name(channels[checkedSlot(index)]);
+    }
+
+    public String from(int index) {
+        return name(senders[checkedSlot(index)]);
+    }
+
+    public String text(int index) {
+        return string(texts[checkedSlot(index)]);
+    }
+
+    public long ts(int index) {
+        return timestamps[checkedSlot(index)];
+    }
+
+    /** Position of the oldest message with the given id, or -1. Compares stored bits without decoding entries. */
+    public int indexOf(String messageId) {
+        return find(messageId, false);
+    }
+
+    /** Position of the newest message with the given id, or -1. */
+    public int lastIndexOf(String messageId) {
+        return find(messageId, true);
+    }
+
+    /** Entries are compared by message id, since {@link #get(int)} returns a fresh copy each time. */
+    @Override
+    public int indexOf(Object o) {
+        return o instanceof Models.Message ? indexOf(((Models.Message) o).id) : -1;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        return o instanceof Models.Message ? lastIndexOf(((Models.Message) o).id) : -1;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return indexOf(o) >= 0;
+    }
+
+    private int find(String messageId, boolean newestFirst) {
+        if (messageId == null) {
+            return -1;
+        }
+        boolean uuid = isUuid(messageId);
+        long high = 0;
+        long low = 0;
+        byte[] key = null;
+        if (uuid) {
+            UUID parsed = UUID.fromString(messageId);
+            high = parsed.getMostSignificantBits();
+            low = parsed.getLeastSignificantBits();
+        } else {
+            key = messageId.getBytes(StandardCharsets.UTF_8);
+        }
+        for (int n = 0; n < size; n++) {
+            int i = newestFirst ? size - 1 - n : n;
+            int slot = slot(i);
+            boolean match = uuid
+                ? (flags[slot] & UUID_ID) != 0 && idHigh[slot] == high && idLow[slot] == low
+                : (flags[slot] & UUID_ID) == 0 && bytesEqual(idHigh[slot], key);
+            if (match) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void store(int slot, Models.Message message) {
+        boolean uuid = message.id != null && isUuid(message.id);
+        byte[] id = uuid ? null : encode(message.id);
+        byte[] text = encode(message.text);
+        byte[] replyTo = encode(message.replyTo);
+        reserve(length(id) + length(text) + length(replyTo));
+
+        if (uuid) {
+            UUID parsed = UUID.fromString(message.id);
+            idHigh[slot] = parsed.getMostSignificantBits();
+            idLow[slot] = parsed.getLeastSignificantBits();
+        } else {
+            idHigh[slot] = append(id);
+            idLow[slot] = 0;
+        }
+        texts[slot] = append(text);
+        replyTos[slot] = append(replyTo);
+        channels[slot] = code(message.channel);
+        senders[slot] = code(message.from);
+        timestamps[slot] = message.ts;
+        flags[slot] = (byte) ((message.encrypted ? ENCRYPTED : 0) | (uuid ? UUID_ID : 0));
+        if (message.file != null && message.voice != null) {
+            attachments[slot] = new Object[] {message.file, message.voice};
+        } else {
+            attachments[slot] = message.file != null ? message.file : message.voice;
+        }
+    }
+
+    /** Gives back the heap bytes and name references held by an entry that is being evicted. */
+    private void release(int slot) {
+        if ((flags[slot] & UUID_ID) == 0) {
+            heapLive -= refLength(idHigh[slot]);
+        }
+        heapLive -= refLength(texts[slot]) + refLength(replyTos[slot]);
+        releaseName(channels[slot]);
+        releaseName(senders[slot]);
+        attachments[slot] = null;
+    }
+
+    private String idAt(int slot) {
+        if ((flags[slot] & UUID_ID) != 0) {
+            return new UUID(idHigh[slot], idLow[slot]).toString();
+        }
+        return string(idHigh[slot]);
+    }
+
+    private int slot(int index) {
+        return (head + index) % texts.length;
+    }
+
+    private int checkedSlot(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+        return slot(index);
+    }
+
+    private void ensureRoom() {
+        if (size < texts.length) {
+            return;
+        }
+        long[] oldIdHigh = idHigh;
+        long[] oldIdLow = idLow;
+        long[] oldTexts = texts;
+        long[] oldReplyTos = replyTos;
+        int[] oldChannels = channels;
+        int[] oldSenders = senders;
+        long[] oldTimestamps = timestamps;
+        byte[] oldFlags = flags;
+        Object[] oldAttachments = attachments;
+
+        allocate((int) Math.min((long) oldTexts.length * 2, capacity));
+        for (int i = 0; i < size; i++) {
+            int from = (head + i) % oldTexts.length;
+            idHigh[i] = oldIdHigh[from];
+            idLow[i] = oldIdLow[from];
+            texts[i] = oldTexts[from];
+            replyTos[i] = oldReplyTos[from];
+            channels[i] = oldChannels[from];
+            senders[i] = oldSenders[from];
+            timestamps[i] = oldTimestamps[from];
+            flags[i] = oldFlags[from];
+            attachments[i] = oldAttachments[from];
+        }
+        head = 0;
+    }
+
+    private void allocate(int length) {
+        idHigh = new long[length];
+        idLow = new long[length];
+        texts = new long[length];
+        replyTos = new long[length];
+        channels = new int[length];
+        senders = new int[length];
+        timestamps = new long[length];
+        flags = new byte[length];
+        attachments = new Object[length];
+    }
+
+    /**
+     * Makes room for {@code length} more bytes at the end of the heap. When it is
+     * full, live strings are copied into a heap half again as large as they are,
+     * which drops the bytes of evicted entries and keeps copying amortized.
+     */
+    private void reserve(int length) {
+        if (heap.length - heapEnd >= length) {
+            return;
+        }
+        long needed = (long) heapLive + length;
+        if (needed > MAX_HEAP) {
+            throw new OutOfMemoryError("Message window heap too large");
+        }
+        byte[] compacted = new byte[(int) Math.min(Math.max(INITIAL_HEAP, needed + needed / 2), MAX_HEAP)];
+        int end = 0;
+        for (int i = 0; i < size; i++) {
+            int slot = slot(i);
+            if ((flags[slot] & UUID_ID) == 0) {
+                idHigh[slot] = move(idHigh[slot], compacted, end);
+                end += refLength(idHigh[slot]);
+            }
+            texts[slot] = move(texts[slot], compacted, end);
+            end += refLength(texts[slot]);
+            replyTos[slot] = move(replyTos[slot], compacted, end);
+            end += refLength(replyTos[slot]);
+        }
+        heap = compacted;
+        heapEnd = end;
+    }
+
+    private long move(long ref, byte[] target, int offset) {
+        if (ref == NULL_REF) {
+            return NULL_REF;
+        }
+        System.arraycopy(heap, (int) (ref >>> 32), target, offset, (int) ref);
+        return (long) offset << 32 | (int) ref;
+    }
+
+    /** Copies bytes into space already made by {@link #reserve}. */
+    private long append(byte[] value) {
+        if (value == null) {
+            return NULL_REF;
+        }
+        int offset = heapEnd;
+        System.arraycopy(value, 0, heap, offset, value.length);
+        heapEnd += value.length;
+        heapLive += value.length;
+        return (long) offset << 32 | value.length;
+    }
+
+    private String string(long ref) {
+        return ref == NULL_REF ? null : new String(heap, (int) (ref >>> 32), (int) ref, StandardCharsets.UTF_8);
+    }
+
+    private boolean bytesEqual(long ref, byte[] key) {
+        if (ref == NULL_REF) {
+            return false;
+        }
+        int offset = (int) (ref >>> 32);
+        return Arrays.equals(heap, offset, offset + (int) ref, key, 0, key.length);
+    }
+
+    private static int refLength(long ref) {
+        return ref == NULL_REF ? 0 : (int) ref;
+    }
+
+    private int code(String name) {
+        if (name == null) {
+            return -1;
+        }
+        Integer code = nameCodes.get(name);
+        if (code == null) {
+            code = freeNameCodes.isEmpty() ? names.size() : freeNameCodes.pop();
+            if (code == names.size()) {
+                names.add(name);
+            } else {
+                names.set(code, name);
+            }
+            nameCodes.put(name, code);
+            if (code >= nameRefs.length) {
+                nameRefs = Arrays.copyOf(nameRefs, nameRefs.length * 2);
+            }
+        }
+        nameRefs[code]++;
+        return code;
+    }
+
+    /** Drops a reference to a name, freeing its code once no entry uses it. */
+    private void releaseName(int code) {
+        if (code < 0 || --nameRefs[code] > 0) {
+            return;
+        }
+        nameCodes.remove(names.get(code));
+        names.set(code, null);
+        freeNameCodes.push(code);
+    }
+
+    private String name(int code) {
+        return code < 0 ? null : names.get(code);
+    }
+
+    /** True for ids in the canonical lowercase form {@link UUID#toString()} produces, so they round-trip. */
+    private static boolean isUuid(String value) {
+        if (value.length() != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = value.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] encode(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int length(byte[] value) {
+        return value == null ? 0 : value.length;
+    }
+}
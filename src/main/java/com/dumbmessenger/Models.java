@@ -1,5 +1,6 @@
 package com.dumbmessenger;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
 
@@ -51,6 +52,9 @@ public class Models {
 
     public static class MessageResponse extends BaseResponse {
         public Message message;
+        /** HTTP status the send was answered with, 0 if unknown. Not part of the JSON body. */
+        @JsonIgnore
+        public int status;
     }
 
     public static class MessageListResponse extends BaseResponse {
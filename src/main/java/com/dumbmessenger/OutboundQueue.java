@@ -0,0 +1,472 @@
+package com.dumbmessenger;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Durable outbound queue for {@link Client#sendMessage} and {@link Client#sendVoiceOnly}.
+ * Enqueued messages are appended to a write-ahead log and fsynced in batches by a
+ * single writer thread, then sent in the background. Messages of one channel are
+ * sent strictly in order. A send that fails with an {@link IOException} or is
+ * answered with 5xx, 429, 408 or 401 is retried with backoff under the same
+ * idempotency key, and immediately when the event socket reconnects. Messages
+ * still in the log are replayed by the next queue opened on the same file.
+ *
+ * <p>Any other response, including a 4xx rejection, is the server's final answer:
+ * it is acknowledged in the log and completes the future returned by enqueue.
+ */
+public class OutboundQueue implements Closeable {
+    private static final long RETRY_BASE_DELAY_MILLIS = 500;
+    private static final long RETRY_MAX_DELAY_MILLIS = 30_000;
+    private static final long COMPACT_THRESHOLD_BYTES = 4L * 1024 * 1024;
+    private static final int MAX_BATCH = 1024;
+    private static final int DEFAULT_SENDER_THREADS = 4;
+    private static final long CLOSE_TIMEOUT_MILLIS = 10_000;
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    static class Record {
+        public String op;
+        public long seq;
+        public String key;
+        public String channel;
+        public String text;
+        public String replyTo;
+        public boolean encrypt;
+        public String voiceMessage;
+    }
+
+    private static final class Outbound {
+        final Record record;
+        final CompletableFuture<Models.MessageResponse> future;
+
+        Outbound(Record record, CompletableFuture<Models.MessageResponse> future) {
+            this.record = record;
+            this.future = future;
+        }
+    }
+
+    private static final class Lane {
+        final Deque<Outbound> queue = new ArrayDeque<>();
+        boolean running;
+        int failures;
+        ScheduledFuture<?> retry;
+    }
+
+    private static final Outbound STOP = new Outbound(null, null);
+
+    private final Client client;
+    private final Path walFile;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final BlockingQueue<Outbound> writes = new LinkedBlockingQueue<>();
+    private final Map<Long, Outbound> pending = new ConcurrentSkipListMap<>();
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+    private final AtomicLong nextSeq = new AtomicLong(1);
+    private final ScheduledThreadPoolExecutor senders;
+    private final Thread writer;
+    private final Consumer<Models.WebSocketEvent> reconnectListener = event -> {
+        if ("connected".equals(event.type)) {
+            retryNow();
+        }
+    };
+    private FileChannel log;
+    private volatile boolean started;
+    private volatile boolean closed;
+
+    public OutboundQueue(Client client, Path walFile) throws IOException {
+        this(client, walFile, DEFAULT_SENDER_THREADS);
+    }
+
+    /**
+     * Opens the queue and loads any messages left unacknowledged in {@code walFile}.
+     * Nothing is sent until {@link #start()} is called.
+     */
+    public OutboundQueue(Client client, Path walFile, int senderThreads) throws IOException {
+        this.client = client;
+        this.walFile = walFile;
+        replay();
+        rewriteLog();
+
+        this.senders = new ScheduledThreadPoolExecutor(senderThreads, runnable -> {
+            Thread thread = new Thread(runnable, "dumbmessenger-outbound");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.senders.setRemoveOnCancelPolicy(true);
+        this.senders.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.writer = new Thread(this::writeLoop, "dumbmessenger-wal");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /** Starts sending queued and replayed messages. Call once the client is authenticated. */
+    public void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        client.addEventListener(reconnectListener);
+        lanes.values().forEach(this::dispatch);
+    }
+
+    /** @throws IllegalArgumentException if {@code channel} or {@code text} is null */
+    public CompletableFuture<Models.MessageResponse> enqueueMessage(String channel, String text,
+                                                                   String replyTo, boolean encrypt) {
+        if (channel == null || text == null) {
+            throw new IllegalArgumentException("Channel and text are required");
+        }
+        Record record = new Record();
+        record.channel = channel;
+        record.text = text;
+        record.replyTo = replyTo;
+        record.encrypt = encrypt;
+        return enqueue(record);
+    }
+
+    /** @throws IllegalArgumentException if {@code channel} or {@code voiceMessage} is null */
+    public CompletableFuture<Models.MessageResponse> enqueueVoice(String channel, String voiceMessage) {
+        if (channel == null || voiceMessage == null) {
+            throw new IllegalArgumentException("Channel and voice message are required");
+        }
+        Record record = new Record();
+        record.channel = channel;
+        record.voiceMessage = voiceMessage;
+        return enqueue(record);
+    }
+
+    /** Number of durably logged messages that have not been delivered yet. */
+    public int pendingCount() {
+        return pending.size();
+    }
+
+    /** Cancels pending backoff and retries every stalled channel right away. */
+    public void retryNow() {
+        if (closed) {
+            return;
+        }
+        for (Lane lane : lanes.values()) {
+            boolean resume = false;
+            synchronized (lane) {
+                if (lane.retry != null && lane.retry.cancel(false)) {
+                    lane.retry = null;
+                    resume = true;
+                }
+            }
+            if (resume) {
+                submit(lane);
+            }
+        }
+    }
+
+    /**
+     * Lets sends already on the wire finish, flushes outstanding log writes and stops.
+     * Futures of messages not delivered by then complete exceptionally; the messages
+     * stay in the log and are replayed by the next queue opened on the same file.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        client.removeEventListener(reconnectListener);
+        // Senders first, so the acks of in-flight sends are logged before the writer stops.
+        senders.shutdown();
+        try {
+            if (!senders.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                senders.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            senders.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        writes.add(STOP);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        IOException undelivered = new IOException("Outbound queue closed before the message was delivered");
+        for (Outbound outbound : pending.values()) {
+            outbound.future.completeExceptionally(undelivered);
+        }
+        log.close();
+    }
+
+    private CompletableFuture<Models.MessageResponse> enqueue(Record record) {
+        CompletableFuture<Models.MessageResponse> future = new CompletableFuture<>();
+        record.op = "enqueue";
+        record.key = UUID.randomUUID().toString();
+        // Atomic with close(), so no record can land behind the writer's STOP.
+        synchronized (this) {
+            if (closed) {
+                future.completeExceptionally(new IOException("Outbound queue is closed"));
+                return future;
+            }
+            record.seq = nextSeq.getAndIncrement();
+            writes.add(new Outbound(record, future));
+        }
+        return future;
+    }
+
+    private void replay() throws IOException {
+        if (!Files.exists(walFile)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(walFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Record record;
+                try {
+                    record = objectMapper.readValue(line, Record.class);
+                } catch (IOException e) {
+                    // A torn write from a crash can only be the tail of the log.
+                    break;
+                }
+                nextSeq.set(Math.max(nextSeq.get(), record.seq + 1));
+                if ("ack".equals(record.op)) {
+                    pending.remove(record.seq);
+                } else if (isSendable(record)) {
+                    pending.put(record.seq, new Outbound(record, new CompletableFuture<>()));
+                }
+                // Records that could never be sent are dropped rather than failing every later open.
+            }
+        }
+        for (Outbound outbound : pending.values()) {
+            Lane lane = lanes.computeIfAbsent(outbound.record.channel, k -> new Lane());
+            lane.queue.add(outbound);
+        }
+    }
+
+    private static boolean isSendable(Record record) {
+        return "enqueue".equals(record.op) && record.channel != null
+            && (record.text != null || record.voiceMessage != null);
+    }
+
+    /** Replaces the log with one holding only the undelivered messages, then reopens it for appending. */
+    private void rewriteLog() throws IOException {
+        Path parent = walFile.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temp = walFile.resolveSibling(walFile.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            List<Record> records = new ArrayList<>();
+            for (Outbound outbound : pending.values()) {
+                records.add(outbound.record);
+            }
+            writeFully(out, encode(records));
+            out.force(true);
+        }
+        Files.move(temp, walFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (log != null) {
+            log.close();
+        }
+        log = FileChannel.open(walFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void writeLoop() {
+        List<Outbound> batch = new ArrayList<>();
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(writes.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            writes.drainTo(batch, MAX_BATCH - 1);
+            stopping = batch.remove(STOP);
+
+            List<Record> records = new ArrayList<>();
+            for (Outbound outbound : batch) {
+                records.add(outbound.record);
+            }
+            try {
+                writeFully(log, encode(records));
+                log.force(false);
+            } catch (IOException | RuntimeException e) {
+                for (Outbound outbound : batch) {
+                    if (outbound.future != null) {
+                        outbound.future.completeExceptionally(e);
+                    }
+                }
+                batch.clear();
+                try {
+                    // Drop whatever part of the batch reached the file so later appends stay readable.
+                    rewriteLog();
+                } catch (IOException | RuntimeException ignored) {
+                    // Keep appending; replay stops at the first unreadable line.
+                }
+                continue;
+            }
+
+            for (Outbound outbound : batch) {
+                if (!"enqueue".equals(outbound.record.op)) {
+                    continue;
+                }
+                // One bad message must not take down the writer thread and every later future with it.
+                try {
+                    pending.put(outbound.record.seq, outbound);
+                    Lane lane = lanes.computeIfAbsent(outbound.record.channel, k -> new Lane());
+                    synchronized (lane) {
+                        lane.queue.add(outbound);
+                    }
+                    if (!stopping) {
+                        dispatch(lane);
+                    }
+                } catch (RuntimeException e) {
+                    acknowledge(outbound.record.seq);
+                    outbound.future.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+
+            try {
+                if (!stopping && log.size() > COMPACT_THRESHOLD_BYTES) {
+                    rewriteLog();
+                }
+            } catch (IOException | RuntimeException e) {
+                // Compaction is an optimisation; keep appending to the current log.
+            }
+        }
+    }
+
+    private void dispatch(Lane lane) {
+        if (!started || closed) {
+            return;
+        }
+        synchronized (lane) {
+            if (lane.running || lane.queue.isEmpty()) {
+                return;
+            }
+            lane.running = true;
+        }
+        submit(lane);
+    }
+
+    private void submit(Lane lane) {
+        try {
+            senders.execute(() -> drain(lane));
+        } catch (RejectedExecutionException e) {
+            // Closed in the meantime; the messages stay in the log.
+            synchronized (lane) {
+                lane.running = false;
+            }
+        }
+    }
+
+    private void drain(Lane lane) {
+        while (true) {
+            Outbound next;
+            synchronized (lane) {
+                next = lane.queue.peek();
+                if (next == null || closed) {
+                    lane.running = false;
+                    return;
+                }
+            }
+
+            Models.MessageResponse response;
+            try {
+                if (!client.isAuthenticated()) {
+                    throw new IOException("Client is not authenticated");
+                }
+                Record record = next.record;
+                response = record.voiceMessage != null
+                    ? client.sendVoiceOnly(record.channel, record.voiceMessage, record.key)
+                    : client.sendMessage(record.channel, record.text, record.replyTo, record.encrypt, record.key);
+                if (isRetryable(response.status)) {
+                    throw new IOException("Send answered with HTTP " + response.status);
+                }
+            } catch (RuntimeException e) {
+                // Not a transport problem, so retrying would only block the channel.
+                synchronized (lane) {
+                    lane.queue.poll();
+                }
+                acknowledge(next.record.seq);
+                next.future.completeExceptionally(e);
+                continue;
+            } catch (IOException e) {
+                synchronized (lane) {
+                    long delay = Math.min(RETRY_BASE_DELAY_MILLIS << Math.min(lane.failures, 16), RETRY_MAX_DELAY_MILLIS);
+                    lane.failures++;
+                    try {
+                        lane.retry = senders.schedule(() -> drain(lane), delay, TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException closing) {
+                        lane.running = false;
+                    }
+                }
+                return;
+            }
+
+            synchronized (lane) {
+                lane.queue.poll();
+                lane.failures = 0;
+            }
+            acknowledge(next.record.seq);
+            next.future.complete(response);
+        }
+    }
+
+    /** Overload, outage or an expired session: worth sending again later. */
+    private static boolean isRetryable(int status) {
+        return status >= 500 || status == 429 || status == 408 || status == 401;
+    }
+
+    private void acknowledge(long seq) {
+        pending.remove(seq);
+        Record ack = new Record();
+        ack.op = "ack";
+        ack.seq = seq;
+        writes.add(new Outbound(ack, null));
+    }
+
+    private byte[] encode(List<Record> records) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Record record : records) {
+            out.write(objectMapper.writeValueAsBytes(record));
+            out.write('\n');
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.dumbmessenger;
+
+import com.dumbmessenger.loadtest.MockServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EndpointPoolTest {
+    private final List<MockServer> servers = new ArrayList<>();
+    private final List<Client> clients = new ArrayList<>();
+
+    @AfterEach
+    void stopServers() throws IOException {
+        for (Client client : clients) {
+            client.close();
+        }
+        for (MockServer server : servers) {
+            server.close();
+        }
+    }
+
+    @Test
+    void roundRobinCyclesThroughCandidates() {
+        List<EndpointPool.Endpoint> endpoints = endpoints("http://a/", "http://b/", "http://c/");
+        EndpointPool.Selector selector = EndpointPool.roundRobin();
+
+        for (int i = 0; i < 6; i++) {
+            assertSame(endpoints.get(i % 3), selector.select(endpoints));
+        }
+    }
+
+    @Test
+    void leastInFlightPrefersIdleEndpoint() {
+        List<EndpointPool.Endpoint> endpoints = endpoints("http://a/", "http://b/", "http://c/");
+        endpoints.get(0).inFlight.set(3);
+        endpoints.get(1).inFlight.set(1);
+        endpoints.get(2).inFlight.set(2);
+
+        assertSame(endpoints.get(1), EndpointPool.leastInFlight().select(endpoints));
+    }
+
+    @Test
+    void latencyEwmaPrefersUnsampledThenFasterEndpoint() {
+        List<EndpointPool.Endpoint> endpoints = endpoints("http://a/", "http://b/");
+        EndpointPool.Selector selector = EndpointPool.latencyEwma();
+        endpoints.get(0).recordLatency(50);
+        assertSame(endpoints.get(1), selector.select(endpoints));
+
+        endpoints.get(1).recordLatency(10);
+        assertSame(endpoints.get(1), selector.select(endpoints));
+
+        endpoints.get(1).inFlight.set(9);
+        assertSame(endpoints.get(0), selector.select(endpoints));
+    }
+
+    @Test
+    void spreadsRequestsOverServers() throws IOException {
+        MockServer first = start(0);
+        MockServer second = start(0);
+        Client client = client(List.of(first.getUrl(), second.getUrl()));
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(client.login("user" + i, "password", null).success);
+        }
+
+        assertEquals(5, first.getRequests());
+        assertEquals(5, second.getRequests());
+    }
+
+    @Test
+    void failsOverNonIdempotentRequestWhenConnectionIsRefused() throws IOException {
+        String dead = "http://127.0.0.1:" + freePort() + "/";
+        MockServer live = start(0);
+        Client client = client(List.of(dead, live.getUrl()));
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(client.login("user" + i, "password", null).success);
+        }
+
+        EndpointPool.Endpoint deadEndpoint = client.getEndpointPool().getPrimary();
+        assertFalse(deadEndpoint.isHealthy());
+        assertEquals(4, live.getRequests());
+    }
+
+    @Test
+    void healthCheckBringsRecoveredServerBack() throws Exception {
+        int port = freePort();
+        MockServer live = start(0);
+        Client client = client(List.of("http://127.0.0.1:" + port + "/", live.getUrl()));
+        EndpointPool.Endpoint recovering = client.getEndpointPool().getPrimary();
+
+        assertTrue(client.login("user", "password", null).success);
+        assertFalse(recovering.isHealthy());
+
+        start(port);
+        await(recovering::isHealthy, 15_000);
+    }
+
+    private MockServer start(int port) throws IOException {
+        MockServer server = new MockServer(port);
+        servers.add(server);
+        return server;
+    }
+
+    private Client client(List<String> urls) {
+        Client client = new Client(urls);
+        clients.add(client);
+        return client;
+    }
+
+    private static List<EndpointPool.Endpoint> endpoints(String... urls) {
+        return new EndpointPool(List.of(urls), EndpointPool.roundRobin()).getEndpoints();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void await(BooleanSupplier condition, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Condition not met within " + timeoutMillis + " ms");
+            Thread.sleep(50);
+        }
+    }
+}
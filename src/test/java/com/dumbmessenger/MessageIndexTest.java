@@ -0,0 +1,244 @@
+package com.dumbmessenger;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageIndexTest {
+    private static final String[] WORDS = {
+        "alpha", "alpine", "alps", "beta", "bet", "better", "gamma", "game", "games", "delta", "deli", "dell"
+    };
+    private static final String[] CHANNELS = {"general", "random", "dev"};
+    private static final String[] USERS = {"alice", "bob", "carol"};
+
+    @Test
+    void matchesModelWhileSegmentsAreSealedAndMerged() {
+        // Tiny segments keep the maintenance thread sealing and merging under every add and remove.
+        MessageIndex index = new MessageIndex(16, 3, 100_000, 64);
+        Map<String, Models.Message> model = new LinkedHashMap<>();
+        Random random = new Random(42);
+        long ts = 1_000;
+
+        for (int op = 0; op < 20_000; op++) {
+            int kind = random.nextInt(100);
+            if (kind < 70) {
+                // Ids come from a small pool, so many adds replace an earlier version.
+                String id = "m" + random.nextInt(2_000);
+                ts += random.nextInt(4);
+                // Now and then a message arrives out of timestamp order.
+                long messageTs = random.nextInt(20) == 0 ? ts - random.nextInt(50) : ts;
+                Models.Message message = message(id, USERS[random.nextInt(USERS.length)],
+                    CHANNELS[random.nextInt(CHANNELS.length)], text(random), messageTs);
+                message.encrypted = random.nextInt(10) == 0;
+                index.add(message);
+                model.remove(id);
+                model.put(id, message);
+            } else if (kind < 85) {
+                String id = "m" + random.nextInt(2_000);
+                assertEquals(model.remove(id) != null, index.remove(id), "remove " + id);
+            } else {
+                String query = query(random);
+                String channel = random.nextBoolean() ? null : CHANNELS[random.nextInt(CHANNELS.length)];
+                String from = random.nextInt(3) == 0 ? USERS[random.nextInt(USERS.length)] : null;
+                long since = Long.MIN_VALUE;
+                long until = Long.MAX_VALUE;
+                if (random.nextBoolean()) {
+                    since = ts - random.nextInt(5_000);
+                    until = since + random.nextInt(2_000);
+                }
+                int limit = random.nextBoolean() ? Integer.MAX_VALUE : 1 + random.nextInt(20);
+                assertEquals(expected(model, query, channel, from, since, until, limit),
+                    index.search(query, channel, from, since, until, limit),
+                    "search '" + query + "' channel=" + channel + " from=" + from + " since=" + since
+                        + " until=" + until + " limit=" + limit);
+            }
+            assertEquals(model.size(), index.size());
+        }
+    }
+
+    @Test
+    void prefixAndFacetQueries() {
+        MessageIndex index = new MessageIndex(4, 8, 1_000);
+        index.add(message("1", "alice", "general", "Hello world", 100));
+        index.add(message("2", "bob", "general", "help wanted", 200));
+        index.add(message("3", "alice", "random", "hello again", 300));
+        index.add(message("4", "carol", "general", "Helicopter!", 400));
+        index.add(message("5", "alice", "general", "goodbye world", 500));
+        index.add(message("6", "bob", "random", "world peace", 600));
+
+        assertEquals(List.of("4", "3", "2", "1"), index.search("hel*", 10));
+        assertEquals(List.of("3", "1"), index.search("hello", 10));
+        assertEquals(List.of("3", "1"), index.search("HELLO*", 10));
+        assertEquals(List.of("6", "5", "1"), index.search("world", 10));
+        assertEquals(List.of("5", "1"), index.search("world", "general", null, Long.MIN_VALUE, Long.MAX_VALUE, 10));
+        assertEquals(List.of("3", "1"), index.search("hel*", null, "alice", Long.MIN_VALUE, Long.MAX_VALUE, 10));
+        assertEquals(List.of("4", "2"), index.search("hel*", "general", null, 150, 450, 10));
+        assertEquals(List.of("6", "3"), index.search(null, "random", null, Long.MIN_VALUE, Long.MAX_VALUE, 10));
+        assertEquals(List.of("6", "5"), index.search("", 2));
+        assertEquals(List.of("4"), index.search("hel*", 1));
+        assertEquals(List.of(), index.search("world", null, null, 700, 800, 10));
+        assertEquals(List.of(), index.search("hello world peace", 10));
+    }
+
+    @Test
+    void queryWithoutSearchableWordsMatchesNothing() {
+        MessageIndex index = new MessageIndex(4, 8, 1_000);
+        index.add(message("1", "alice", "general", "hello", 100));
+
+        assertEquals(List.of(), index.search("!!!", 10));
+        assertEquals(List.of(), index.search("-", 10));
+        assertEquals(List.of(), index.search("*", 10));
+        assertEquals(List.of("1"), index.search(null, 10));
+        assertEquals(List.of("1"), index.search("   ", 10));
+        assertEquals(List.of("1"), index.search("!!! hello", 10));
+    }
+
+    @Test
+    void evictsOldestMessagesAboveLimit() throws InterruptedException {
+        MessageIndex index = new MessageIndex(10, 4, 100);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            ids.add("m" + i);
+            index.add(message("m" + i, "alice", "general", "word " + i, i));
+        }
+
+        await(() -> index.size() <= 100 && index.search(null, Integer.MAX_VALUE).size() == index.size());
+
+        List<String> newest = new ArrayList<>(ids.subList(ids.size() - index.size(), ids.size()));
+        Collections.reverse(newest);
+        assertEquals(newest, index.search(null, Integer.MAX_VALUE));
+        assertTrue(index.size() > 100 - 10, "evicted more than one segment too many: " + index.size());
+        assertEquals(List.of(), index.search("0", 10));
+        assertFalse(index.remove("m0"));
+        assertEquals(List.of("m999"), index.search("999", 10));
+    }
+
+    @Test
+    void clearWhileMaintenanceRuns() throws Exception {
+        MessageIndex index = new MessageIndex(8, 2, 200, 16);
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            Random random = new Random(7);
+            for (int i = 0; !stop.get(); i++) {
+                index.add(message("w" + random.nextInt(5_000), "bob", "general", text(random), i));
+                if (i % 7 == 0) {
+                    index.remove("w" + random.nextInt(5_000));
+                }
+            }
+        });
+        writer.start();
+        for (int i = 0; i < 200; i++) {
+            index.clear();
+            Thread.sleep(1);
+        }
+        stop.set(true);
+        writer.join();
+
+        index.clear();
+        assertEquals(0, index.size());
+        assertEquals(List.of(), index.search(null, 10));
+
+        for (int i = 0; i < 1_000; i++) {
+            index.add(message("n" + i, "carol", "dev", "after clear " + i, 10_000 + i));
+        }
+        // Maintenance must still be alive to bring the index back under its limit.
+        await(() -> index.size() <= 200 && index.search(null, Integer.MAX_VALUE).size() == index.size());
+        List<String> results = index.search("after", Integer.MAX_VALUE);
+        assertEquals(index.size(), results.size());
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals("n" + (999 - i), results.get(i));
+        }
+    }
+
+    private static List<String> expected(Map<String, Models.Message> model, String query, String channel,
+                                         String from, long since, long until, int limit) {
+        List<String> words = new ArrayList<>();
+        List<Boolean> prefixes = new ArrayList<>();
+        for (String word : query.trim().split("\\s+")) {
+            boolean prefix = word.endsWith("*");
+            List<String> tokens = MessageIndex.tokenize(prefix ? word.substring(0, word.length() - 1) : word);
+            for (int i = 0; i < tokens.size(); i++) {
+                words.add(tokens.get(i));
+                prefixes.add(prefix && i == tokens.size() - 1);
+            }
+        }
+        List<String> results = new ArrayList<>();
+        if (words.isEmpty() && !query.isBlank()) {
+            return results;
+        }
+        List<Models.Message> messages = new ArrayList<>(model.values());
+        for (int m = messages.size() - 1; m >= 0 && results.size() < limit; m--) {
+            Models.Message message = messages.get(m);
+            if ((channel != null && !channel.equals(message.channel)) || (from != null && !from.equals(message.from))
+                    || message.ts < since || message.ts > until) {
+                continue;
+            }
+            List<String> tokens = message.encrypted ? List.of() : MessageIndex.tokenize(message.text);
+            boolean all = true;
+            for (int w = 0; w < words.size() && all; w++) {
+                String word = words.get(w);
+                boolean prefix = prefixes.get(w);
+                all = tokens.stream().anyMatch(token -> prefix ? token.startsWith(word) : token.equals(word));
+            }
+            if (all) {
+                results.add(message.id);
+            }
+        }
+        return results;
+    }
+
+    private static String text(Random random) {
+        StringBuilder text = new StringBuilder();
+        int words = 1 + random.nextInt(4);
+        for (int i = 0; i < words; i++) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextBoolean() ? " " : ", ");
+        }
+        return text.toString();
+    }
+
+    private static String query(Random random) {
+        switch (random.nextInt(6)) {
+            case 0:
+                return "";
+            case 1:
+                return "?!";
+            case 2: {
+                String word = WORDS[random.nextInt(WORDS.length)];
+                return word.substring(0, 1 + random.nextInt(word.length())) + "*";
+            }
+            case 3:
+                return WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)];
+            default:
+                return WORDS[random.nextInt(WORDS.length)].toUpperCase();
+        }
+    }
+
+    private static Models.Message message(String id, String from, String channel, String text, long ts) {
+        Models.Message message = new Models.Message();
+        message.id = id;
+        message.from = from;
+        message.channel = channel;
+        message.text = text;
+        message.ts = ts;
+        return message;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Condition not met in time");
+            Thread.sleep(20);
+        }
+    }
+}
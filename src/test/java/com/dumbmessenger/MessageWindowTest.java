@@ -0,0 +1,198 @@
+package com.dumbmessenger;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageWindowTest {
+    private static final String[] TEXTS = {
+        null, "", "hi", "h\u00e9llo w\u00f6rld", "emoji \ud83d\ude00 text", "x".repeat(3_000)
+    };
+
+    @Test
+    void matchesDequeModel() {
+        Random random = new Random(11);
+        for (int capacity : new int[] {1, 7, 50, 300}) {
+            MessageWindow window = new MessageWindow(capacity);
+            Deque<Models.Message> model = new ArrayDeque<>();
+            List<String> recentIds = new ArrayList<>();
+
+            for (int op = 0; op < 20_000; op++) {
+                int kind = random.nextInt(100);
+                if (kind < 75) {
+                    Models.Message message = message(random, recentIds);
+                    if (model.size() == capacity) {
+                        model.pollFirst();
+                    }
+                    model.addLast(message);
+                    assertTrue(window.add(message));
+                } else if (kind < 95) {
+                    Models.Message message = message(random, recentIds);
+                    boolean room = model.size() < capacity;
+                    if (room) {
+                        model.addFirst(message);
+                    }
+                    assertEquals(room, window.addFirst(message));
+                } else if (kind < 96) {
+                    model.clear();
+                    window.clear();
+                } else {
+                    String id = recentIds.isEmpty() ? "none" : recentIds.get(random.nextInt(recentIds.size()));
+                    Models.Message probe = new Models.Message();
+                    probe.id = id;
+                    List<Models.Message> list = new ArrayList<>(model);
+                    assertEquals(firstIndex(list, id), window.indexOf(id), "indexOf " + id);
+                    assertEquals(lastIndex(list, id), window.lastIndexOf(id), "lastIndexOf " + id);
+                    assertEquals(firstIndex(list, id), window.indexOf(probe));
+                    assertEquals(lastIndex(list, id), window.lastIndexOf(probe));
+                    assertEquals(firstIndex(list, id) >= 0, window.contains(probe));
+                }
+                if (op % 97 == 0) {
+                    assertSameEntries(model, window);
+                }
+            }
+            assertSameEntries(model, window);
+        }
+    }
+
+    @Test
+    void keepsIdsExactly() {
+        MessageWindow window = new MessageWindow(10);
+        String uuid = UUID.randomUUID().toString();
+        String[] ids = {uuid, uuid.toUpperCase(), "{" + uuid + "}", "42", "\u00fcn\u00efc\u00f6d\u00e9", null};
+        for (String id : ids) {
+            Models.Message message = new Models.Message();
+            message.id = id;
+            window.add(message);
+        }
+
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(ids[i], window.get(i).id);
+            assertEquals(ids[i], window.id(i));
+        }
+        assertEquals(0, window.indexOf(uuid));
+        assertEquals(1, window.indexOf(uuid.toUpperCase()));
+        assertEquals(-1, window.indexOf((String) null));
+        assertEquals(-1, window.indexOf("missing"));
+        assertFalse(window.contains("not a message"));
+    }
+
+    @Test
+    void reusesNameCodesAfterEviction() {
+        MessageWindow window = new MessageWindow(5);
+        for (int i = 0; i < 10_000; i++) {
+            Models.Message message = new Models.Message();
+            message.id = "m" + i;
+            message.channel = "channel-" + i;
+            message.from = "user-" + (i % 3);
+            window.add(message);
+        }
+
+        for (int i = 0; i < 5; i++) {
+            int n = 10_000 - 5 + i;
+            assertEquals("channel-" + n, window.channel(i));
+            assertEquals("user-" + (n % 3), window.from(i));
+        }
+    }
+
+    @Test
+    void compactsHeapAsEntriesAreEvicted() {
+        MessageWindow window = new MessageWindow(3);
+        for (int i = 0; i < 5_000; i++) {
+            Models.Message message = new Models.Message();
+            message.id = "m" + i;
+            message.text = i + ":" + "y".repeat(i % 700);
+            message.replyTo = i % 2 == 0 ? "m" + (i - 1) : null;
+            window.add(message);
+        }
+
+        for (int i = 0; i < 3; i++) {
+            int n = 5_000 - 3 + i;
+            assertEquals(n + ":" + "y".repeat(n % 700), window.text(i));
+            assertEquals(n % 2 == 0 ? "m" + (n - 1) : null, window.get(i).replyTo);
+        }
+        assertThrows(IndexOutOfBoundsException.class, () -> window.get(3));
+    }
+
+    private static void assertSameEntries(Deque<Models.Message> model, MessageWindow window) {
+        assertEquals(model.size(), window.size());
+        int i = 0;
+        for (Models.Message expected : model) {
+            Models.Message actual = window.get(i);
+            assertEquals(expected.id, actual.id);
+            assertEquals(expected.from, actual.from);
+            assertEquals(expected.channel, actual.channel);
+            assertEquals(expected.text, actual.text);
+            assertEquals(expected.ts, actual.ts);
+            assertEquals(expected.replyTo, actual.replyTo);
+            assertEquals(expected.encrypted, actual.encrypted);
+            assertSame(expected.file, actual.file);
+            assertSame(expected.voice, actual.voice);
+            i++;
+        }
+    }
+
+    private static Models.Message message(Random random, List<String> recentIds) {
+        Models.Message message = new Models.Message();
+        int idKind = random.nextInt(10);
+        if (idKind < 4) {
+            message.id = UUID.randomUUID().toString();
+        } else if (idKind < 5) {
+            message.id = UUID.randomUUID().toString().toUpperCase();
+        } else if (idKind < 8) {
+            message.id = "msg-" + random.nextInt(1_000_000);
+        } else if (idKind < 9 && !recentIds.isEmpty()) {
+            // A duplicate id, so first and last positions differ.
+            message.id = recentIds.get(random.nextInt(recentIds.size()));
+        }
+        if (message.id != null) {
+            if (recentIds.size() == 64) {
+                recentIds.remove(random.nextInt(recentIds.size()));
+            }
+            recentIds.add(message.id);
+        }
+        // Many distinct names, so codes are freed on eviction and handed out again.
+        message.channel = random.nextInt(20) == 0 ? null : "channel-" + random.nextInt(500);
+        message.from = random.nextInt(20) == 0 ? null : "user-" + random.nextInt(2_000);
+        message.text = TEXTS[random.nextInt(TEXTS.length)];
+        message.replyTo = random.nextBoolean() ? null : "reply-" + random.nextInt(100);
+        message.ts = random.nextLong();
+        message.encrypted = random.nextInt(4) == 0;
+        if (random.nextInt(5) == 0) {
+            message.file = new Models.FileAttachment();
+        }
+        if (random.nextInt(5) == 0) {
+            message.voice = new Models.VoiceAttachment();
+        }
+        return message;
+    }
+
+    private static int firstIndex(List<Models.Message> list, String id) {
+        for (int i = 0; i < list.size(); i++) {
+            if (id.equals(list.get(i).id)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndex(List<Models.Message> list, String id) {
+        for (int i = list.size() - 1; i >= 0; i--) {
+            if (id.equals(list.get(i).id)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,268 @@
+package com.dumbmessenger;
+
+import com.dumbmessenger.loadtest.MockServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboundQueueTest {
+    @TempDir
+    Path dir;
+
+    private final List<AutoCloseable> resources = new ArrayList<>();
+
+    @AfterEach
+    void closeResources() throws Exception {
+        for (int i = resources.size() - 1; i >= 0; i--) {
+            resources.get(i).close();
+        }
+    }
+
+    @Test
+    void rejectsMessagesWithoutChannelOrBody() throws IOException {
+        OutboundQueue queue = open(client("http://127.0.0.1:1/"));
+
+        assertThrows(IllegalArgumentException.class, () -> queue.enqueueMessage(null, "text", null, false));
+        assertThrows(IllegalArgumentException.class, () -> queue.enqueueMessage("general", null, null, false));
+        assertThrows(IllegalArgumentException.class, () -> queue.enqueueVoice("general", null));
+        assertThrows(IllegalArgumentException.class, () -> queue.enqueueVoice(null, "voice"));
+    }
+
+    @Test
+    void replaysUndeliveredMessagesInOrder() throws Exception {
+        Client offline = client("http://127.0.0.1:1/");
+        OutboundQueue first = new OutboundQueue(offline, wal());
+        for (int i = 0; i < 5; i++) {
+            first.enqueueMessage("general", "general " + i, null, false);
+            first.enqueueMessage("random", "random " + i, null, false);
+        }
+        await(() -> first.pendingCount() == 10);
+        first.close();
+
+        MockServer server = server();
+        Client client = login(server);
+        OutboundQueue second = open(client);
+        assertEquals(10, second.pendingCount());
+        second.start();
+
+        await(() -> second.pendingCount() == 0);
+        assertEquals(List.of("general 0", "general 1", "general 2", "general 3", "general 4"), texts(client, "general"));
+        assertEquals(List.of("random 0", "random 1", "random 2", "random 3", "random 4"), texts(client, "random"));
+    }
+
+    @Test
+    void ignoresTornTailOfLog() throws Exception {
+        OutboundQueue first = new OutboundQueue(client("http://127.0.0.1:1/"), wal());
+        first.enqueueMessage("general", "one", null, false);
+        first.enqueueVoice("general", "two");
+        await(() -> first.pendingCount() == 2);
+        first.close();
+        Files.write(wal(), "{\"op\":\"enqueue\",\"seq\":3,\"chan".getBytes(StandardCharsets.UTF_8),
+            StandardOpenOption.APPEND);
+
+        OutboundQueue second = open(client("http://127.0.0.1:1/"));
+
+        assertEquals(2, second.pendingCount());
+        assertEquals(2, Files.readAllLines(wal()).size());
+    }
+
+    @Test
+    void skipsRecordsThatCannotBeSent() throws Exception {
+        Files.write(wal(), List.of(
+            "{\"op\":\"enqueue\",\"seq\":1,\"key\":\"a\",\"text\":\"no channel\"}",
+            "{\"op\":\"enqueue\",\"seq\":2,\"key\":\"b\",\"channel\":\"general\"}",
+            "{\"op\":\"enqueue\",\"seq\":3,\"key\":\"c\",\"channel\":\"general\",\"text\":\"ok\"}"));
+
+        OutboundQueue queue = open(client("http://127.0.0.1:1/"));
+
+        assertEquals(1, queue.pendingCount());
+    }
+
+    @Test
+    void compactsDeliveredMessagesOutOfLog() throws Exception {
+        MockServer server = server();
+        Client client = login(server);
+        OutboundQueue first = new OutboundQueue(client, wal());
+        first.start();
+        List<CompletableFuture<Models.MessageResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(first.enqueueMessage("general", "message " + i, null, false));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        first.close();
+        assertEquals(40, Files.readAllLines(wal()).size());
+
+        OutboundQueue second = open(client);
+
+        assertEquals(0, second.pendingCount());
+        assertEquals(0, Files.size(wal()));
+    }
+
+    @Test
+    void sendsEachChannelInEnqueueOrder() throws Exception {
+        MockServer server = server();
+        Client client = login(server);
+        OutboundQueue queue = open(client);
+        queue.start();
+
+        List<String> channels = List.of("a", "b", "c");
+        Map<String, List<String>> expected = new HashMap<>();
+        List<CompletableFuture<Models.MessageResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            for (String channel : channels) {
+                String text = channel + " " + i;
+                expected.computeIfAbsent(channel, k -> new ArrayList<>()).add(text);
+                futures.add(queue.enqueueMessage(channel, text, null, false));
+            }
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+
+        for (String channel : channels) {
+            assertEquals(expected.get(channel), texts(client, channel));
+        }
+    }
+
+    @Test
+    void closeUnregistersReconnectListener() throws Exception {
+        Client client = client("http://127.0.0.1:1/");
+        int before = client.eventListenerCount();
+        OutboundQueue queue = new OutboundQueue(client, wal());
+        queue.start();
+        assertEquals(before + 1, client.eventListenerCount());
+
+        queue.close();
+
+        assertEquals(before, client.eventListenerCount());
+    }
+
+    @Test
+    void retriesServerErrorsUnderSameKey() throws Exception {
+        MockServer server = server();
+        Client client = login(server);
+        OutboundQueue queue = open(client);
+        queue.start();
+        server.failMessages(1, 503);
+
+        Models.MessageResponse first = queue.enqueueMessage("general", "one", null, false).get(10, TimeUnit.SECONDS);
+        server.failMessages(1, 429);
+        Models.MessageResponse second = queue.enqueueMessage("general", "two", null, false).get(10, TimeUnit.SECONDS);
+
+        assertTrue(first.success);
+        assertTrue(second.success);
+        assertEquals(List.of("one", "two"), texts(client, "general"));
+        assertEquals(0, queue.pendingCount());
+    }
+
+    @Test
+    void retriesUnauthorizedUntilLoggedIn() throws Exception {
+        MockServer server = server();
+        Client client = client(server.getUrl());
+        client.setAuthToken("expired");
+        OutboundQueue queue = open(client);
+        queue.start();
+
+        CompletableFuture<Models.MessageResponse> future = queue.enqueueMessage("general", "hello", null, false);
+        Thread.sleep(300);
+        assertFalse(future.isDone());
+        assertEquals(1, queue.pendingCount());
+
+        assertTrue(client.login("alice", "password", null).success);
+        assertTrue(future.get(10, TimeUnit.SECONDS).success);
+        assertEquals(List.of("hello"), texts(client, "general"));
+    }
+
+    @Test
+    void acknowledgesDefinitiveRejection() throws Exception {
+        MockServer server = server();
+        Client client = login(server);
+        OutboundQueue queue = open(client);
+        queue.start();
+        server.failMessages(1, 400);
+
+        Models.MessageResponse response = queue.enqueueMessage("general", "bad", null, false).get(10, TimeUnit.SECONDS);
+
+        assertFalse(response.success);
+        assertEquals(400, response.status);
+        await(() -> queue.pendingCount() == 0);
+        assertEquals(List.of(), texts(client, "general"));
+    }
+
+    @Test
+    void closeFailsUndeliveredFutures() throws Exception {
+        // Not logged in, so every send attempt fails and waits on a retry.
+        OutboundQueue first = new OutboundQueue(client("http://127.0.0.1:1/"), wal());
+        first.start();
+        CompletableFuture<Models.MessageResponse> future = first.enqueueMessage("general", "hello", null, false);
+        await(() -> first.pendingCount() == 1);
+
+        first.close();
+
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> future.get(1, TimeUnit.SECONDS));
+        assertTrue(failure.getCause() instanceof IOException);
+        assertTrue(first.enqueueMessage("general", "late", null, false).isCompletedExceptionally());
+        assertEquals(1, open(client("http://127.0.0.1:1/")).pendingCount());
+    }
+
+    private Path wal() {
+        return dir.resolve("outbound.wal");
+    }
+
+    private OutboundQueue open(Client client) throws IOException {
+        OutboundQueue queue = new OutboundQueue(client, wal());
+        resources.add(queue);
+        return queue;
+    }
+
+    private MockServer server() throws IOException {
+        MockServer server = new MockServer(0);
+        resources.add(server);
+        return server;
+    }
+
+    private Client client(String url) {
+        Client client = new Client(url);
+        resources.add(client);
+        return client;
+    }
+
+    private Client login(MockServer server) throws IOException {
+        Client client = client(server.getUrl());
+        assertTrue(client.login("alice", "password", null).success);
+        return client;
+    }
+
+    private static List<String> texts(Client client, String channel) throws IOException {
+        List<String> texts = new ArrayList<>();
+        for (Models.Message message : client.getMessages(channel, 100, null).messages) {
+            texts.add(message.text);
+        }
+        return texts;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Condition not met in time");
+            Thread.sleep(20);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.dumbmessenger;
+
+import com.dumbmessenger.loadtest.MockServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WebSocketHeartbeatTest {
+    private static final long INTERVAL_MILLIS = 100;
+    private static final long TIMEOUT_MILLIS = 400;
+
+    private final List<String> events = new CopyOnWriteArrayList<>();
+    private MockServer server;
+    private Client client;
+
+    @AfterEach
+    void stop() throws IOException {
+        if (client != null) {
+            client.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    void measuresLatencyFromPongs() throws Exception {
+        connect(true);
+
+        await(() -> client.getWebSocketLatencyMillis() >= 0);
+        assertTrue(client.isWebSocketConnected());
+    }
+
+    @Test
+    void silentSocketIsReportedDisconnected() throws Exception {
+        client = client(false);
+        client.setAutoReconnect(false);
+        client.connectWebSocket();
+        await(client::isWebSocketConnected);
+
+        await(() -> !client.isWebSocketConnected());
+        await(() -> events.contains("timeout"));
+        assertEquals(-1, client.getWebSocketLatencyMillis());
+    }
+
+    @Test
+    void heartbeatTimeoutReconnectsWithBackoff() throws Exception {
+        connect(false);
+        await(() -> events.contains("timeout"));
+        // Nothing to come back to, so every further attempt fails and the delay doubles.
+        server.close();
+
+        await(() -> reconnectDelays().size() >= 2);
+        List<Long> delays = reconnectDelays();
+        assertEquals(List.of(1_000L, 2_000L), delays.subList(0, 2));
+    }
+
+    private void connect(boolean answerPings) throws IOException, InterruptedException {
+        client = client(answerPings);
+        client.connectWebSocket();
+        await(() -> events.contains("connected"));
+    }
+
+    private Client client(boolean answerPings) throws IOException {
+        server = new MockServer(0);
+        server.setAnswerPings(answerPings);
+        Client created = new Client(server.getUrl());
+        assertTrue(created.login("alice", "password", null).success);
+        created.setHeartbeatInterval(INTERVAL_MILLIS);
+        created.setHeartbeatTimeout(TIMEOUT_MILLIS);
+        created.addEventListener(event -> events.add(event.type));
+        created.addEventListener(event -> {
+            if ("reconnecting".equals(event.type)) {
+                events.add(event.message);
+            }
+        });
+        return created;
+    }
+
+    private List<Long> reconnectDelays() {
+        List<Long> delays = new ArrayList<>();
+        for (String event : events) {
+            if (event.startsWith("WebSocket reconnecting in ")) {
+                delays.add(Long.parseLong(event.replaceAll("\\D", "")));
+            }
+        }
+        return delays;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Condition not met in time");
+            Thread.sleep(20);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.dumbmessenger.loadtest;
+
+import com.dumbmessenger.MessageIndex;
+import com.dumbmessenger.Models;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+/**
+ * Measures {@link MessageIndex} query latency over a large synthetic history.
+ * Messages have skewed word frequencies, a few dozen channels, a thousand senders
+ * and timestamps 100 ms apart. Each query shape runs once to warm up and once to
+ * measure, single-threaded and with no concurrent adds. With {@code --max-p99-ms}
+ * it exits non-zero when the p99 of any shape misses the target.
+ *
+ * <pre>
+ * mvn -B -Ploadtest test-compile exec:java -Dloadtest.main=com.dumbmessenger.loadtest.IndexBenchmark \
+ *     -Dexec.args="--max-p99-ms 1"
+ * gradle indexBenchmark --args="--messages 2000000 --max-p99-ms 1"
+ * </pre>
+ *
+ * Options: {@code --messages} (2,000,000), {@code --queries} per shape (10,000),
+ * {@code --limit} results per query (20), {@code --seed} (1), {@code --max-p99-ms}.
+ */
+public class IndexBenchmark {
+    private static final int VOCABULARY = 50_000;
+    private static final int WORDS_PER_MESSAGE = 8;
+    private static final int CHANNELS = 40;
+    private static final int USERS = 1_000;
+    private static final long SETTLE_MILLIS = 30_000;
+    private static final long TS_STEP_MILLIS = 100;
+    private static final long HOUR_MILLIS = 3_600_000;
+
+    private final Map<String, String> options;
+    private final Random random;
+    private final String[] words = new String[VOCABULARY];
+
+    IndexBenchmark(Map<String, String> options) {
+        this.options = options;
+        this.random = new Random(longOption("seed", 1));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected --option value, got " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        System.exit(new IndexBenchmark(options).run() ? 0 : 1);
+    }
+
+    boolean run() throws InterruptedException {
+        int messages = (int) longOption("messages", 2_000_000);
+        int queries = (int) longOption("queries", 10_000);
+        int limit = (int) longOption("limit", 20);
+        for (int i = 0; i < words.length; i++) {
+            words[i] = randomWord();
+        }
+
+        MessageIndex index = new MessageIndex();
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            index.add(message(i));
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Indexed %,d messages in %.1f s (%,.0f msg/s)%n", messages, seconds, messages / seconds);
+        settle(index);
+
+        long lastTs = (messages - 1) * TS_STEP_MILLIS;
+        Map<String, IntFunction<List<String>>> shapes = new LinkedHashMap<>();
+        shapes.put("common word", q -> index.search(words[rank()], limit));
+        shapes.put("rare word", q -> index.search(words[VOCABULARY - 1 - random.nextInt(VOCABULARY / 2)], limit));
+        shapes.put("two words", q -> index.search(words[rank()] + " " + words[rank()], limit));
+        shapes.put("prefix", q -> index.search(words[rank()].substring(0, 3) + "*", limit));
+        shapes.put("channel", q -> index.search(null, channel(), null, Long.MIN_VALUE, Long.MAX_VALUE, limit));
+        shapes.put("word + sender", q -> index.search(words[rank()], null, user(), Long.MIN_VALUE, Long.MAX_VALUE,
+            limit));
+        shapes.put("word + old range", q -> {
+            long since = (long) (random.nextDouble() * lastTs / 2);
+            return index.search(words[rank()], null, null, since, since + HOUR_MILLIS, limit);
+        });
+        shapes.put("word + last hour", q -> index.search(words[rank()], channel(), null, lastTs - HOUR_MILLIS,
+            lastTs, limit));
+
+        boolean passed = true;
+        double maxP99 = options.containsKey("max-p99-ms") ? Double.parseDouble(options.get("max-p99-ms")) : -1;
+        for (Map.Entry<String, IntFunction<List<String>>> shape : shapes.entrySet()) {
+            measure(shape.getValue(), queries);
+            long[] nanos = measure(shape.getValue(), queries);
+            Arrays.sort(nanos);
+            double p99 = percentile(nanos, 99) / 1e6;
+            System.out.printf("%-17s p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f ms%n", shape.getKey(),
+                percentile(nanos, 50) / 1e6, percentile(nanos, 90) / 1e6, p99,
+                percentile(nanos, 99.9) / 1e6, nanos[nanos.length - 1] / 1e6);
+            if (maxP99 >= 0 && p99 > maxP99) {
+                System.out.printf("FAIL: %s p99 %.3f ms exceeds %.3f ms%n", shape.getKey(), p99, maxP99);
+                passed = false;
+            }
+        }
+        return passed;
+    }
+
+    private static long[] measure(IntFunction<List<String>> query, int count) {
+        long[] nanos = new long[count];
+        long sink = 0;
+        for (int i = 0; i < count; i++) {
+            long start = System.nanoTime();
+            sink += query.apply(i).size();
+            nanos[i] = System.nanoTime() - start;
+        }
+        if (sink < 0) {
+            throw new AssertionError();
+        }
+        return nanos;
+    }
+
+    /** Waits until a full scan sees every document, i.e. sealing and eviction have caught up. */
+    private static void settle(MessageIndex index) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+        int size;
+        do {
+            Thread.sleep(200);
+            size = index.size();
+        } while (index.search(null, Integer.MAX_VALUE).size() != size && System.currentTimeMillis() < deadline);
+    }
+
+    private Models.Message message(int i) {
+        Models.Message message = new Models.Message();
+        message.id = "msg-" + i;
+        message.from = user();
+        message.channel = channel();
+        message.ts = i * TS_STEP_MILLIS;
+        StringBuilder text = new StringBuilder();
+        for (int w = 0; w < WORDS_PER_MESSAGE; w++) {
+            text.append(words[rank()]).append(' ');
+        }
+        message.text = text.toString();
+        return message;
+    }
+
+    /** Word rank skewed towards the front of the vocabulary, roughly like natural text. */
+    private int rank() {
+        double r = random.nextDouble();
+        return (int) (VOCABULARY * r * r * r);
+    }
+
+    private String channel() {
+        return "channel-" + random.nextInt(CHANNELS);
+    }
+
+    private String user() {
+        return "user-" + random.nextInt(USERS);
+    }
+
+    private String randomWord() {
+        char[] chars = new char[3 + random.nextInt(8)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private long longOption(String name, long defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+}
@@ -0,0 +1,309 @@
+package com.dumbmessenger.loadtest;
+
+import com.dumbmessenger.Client;
+import com.dumbmessenger.Models;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives many {@link Client} instances against an in-process {@link MockServer} (or a
+ * real server given with {@code --server}) and reports throughput, send and delivery
+ * latency percentiles, allocation rate and socket counts. With {@code --max-p99-ms}
+ * or {@code --min-throughput} it exits non-zero when the run misses the target, so
+ * it can gate a build.
+ *
+ * <pre>
+ * mvn -B -Ploadtest test-compile exec:java -Dexec.args="--accounts 200 --rate 5 --duration 60"
+ * gradle loadTest --args="--accounts 200 --rate 5 --duration 60"
+ * </pre>
+ *
+ * Options: {@code --accounts} (50), {@code --channels} (10), {@code --rate} messages
+ * per second per account (1), {@code --payload} bytes of text (256), {@code --warmup}
+ * and {@code --duration} in seconds (5, 30), {@code --threads} sender threads (32),
+ * {@code --server} URL, {@code --max-p99-ms}, {@code --min-throughput}.
+ */
+public class LoadTest {
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    private final Map<String, String> options;
+    // Send times are embedded as offsets from here: nanoTime itself may be negative.
+    private final long runStart = System.nanoTime();
+    private final Recorder sendLatency = new Recorder(HIGHEST_TRACKABLE_MICROS, 3);
+    private final Recorder deliveryLatency = new Recorder(HIGHEST_TRACKABLE_MICROS, 3);
+    private final Histogram sendTotal = new Histogram(HIGHEST_TRACKABLE_MICROS, 3);
+    private final Histogram deliveryTotal = new Histogram(HIGHEST_TRACKABLE_MICROS, 3);
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private volatile boolean measuring;
+
+    LoadTest(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected --option value, got " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        System.exit(new LoadTest(options).run() ? 0 : 1);
+    }
+
+    boolean run() throws Exception {
+        int accounts = intOption("accounts", 50);
+        int channels = intOption("channels", 10);
+        double rate = doubleOption("rate", 1.0);
+        int payload = intOption("payload", 256);
+        int warmup = intOption("warmup", 5);
+        int duration = intOption("duration", 30);
+        int threads = intOption("threads", 32);
+
+        MockServer server = options.containsKey("server") ? null : new MockServer(0);
+        String url = server != null ? server.getUrl() : options.get("server");
+        System.out.printf("Target %s: %d accounts, %d channels, %.2f msg/s each, %d byte payload%n",
+            url, accounts, channels, rate, payload);
+
+        List<Client> clients = new ArrayList<>();
+        ScheduledThreadPoolExecutor senders = null;
+        try {
+            for (int i = 0; i < accounts; i++) {
+                clients.add(connect(url, "load" + i, "load-channel-" + (i % channels)));
+            }
+            awaitConnected(clients);
+
+            senders = new ScheduledThreadPoolExecutor(threads);
+            long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+            List<ScheduledFuture<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < accounts; i++) {
+                tasks.add(schedule(senders, clients.get(i), "load-channel-" + (i % channels), periodNanos, payload));
+            }
+
+            sampleFor(warmup, "warmup", server);
+            sendLatency.reset();
+            deliveryLatency.reset();
+            long sentBefore = sent.get();
+            long deliveredBefore = delivered.get();
+            long errorsBefore = errors.get();
+            Map<Boolean, Long> allocatedBefore = allocatedBytes();
+            long gcBefore = gcMillis();
+            long start = System.nanoTime();
+            measuring = true;
+
+            sampleFor(duration, "run", server);
+
+            measuring = false;
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Map<Boolean, Long> allocatedAfter = allocatedBytes();
+            tasks.forEach(task -> task.cancel(false));
+            senders.shutdown();
+            senders.awaitTermination(10, TimeUnit.SECONDS);
+            senders = null;
+
+            double throughput = (sent.get() - sentBefore) / seconds;
+            System.out.println();
+            System.out.printf("Sent       %,d msgs (%.1f msg/s), %,d errors%n",
+                sent.get() - sentBefore, throughput, errors.get() - errorsBefore);
+            System.out.printf("Delivered  %,d events (%.1f events/s)%n",
+                delivered.get() - deliveredBefore, (delivered.get() - deliveredBefore) / seconds);
+            printPercentiles("Send latency", sendTotal);
+            printPercentiles("Delivery latency", deliveryTotal);
+            System.out.printf("Allocation %.1f MB/s client, %.1f MB/s mock server; GC %d ms%n",
+                (allocatedAfter.get(false) - allocatedBefore.get(false)) / seconds / 1e6,
+                (allocatedAfter.get(true) - allocatedBefore.get(true)) / seconds / 1e6,
+                gcMillis() - gcBefore);
+            System.out.printf("Sockets    %s open file descriptors%s%n", openFileDescriptors(),
+                server == null ? "" : String.format(", server saw %d open / %d peak connections, %d websockets",
+                    server.getOpenConnections(), server.getPeakConnections(), server.getOpenWebSockets()));
+
+            return checkGates(throughput);
+        } finally {
+            if (senders != null) {
+                // Non-daemon threads: without this a failed warmup would keep the JVM alive.
+                senders.shutdownNow();
+            }
+            clients.forEach(Client::close);
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    private Client connect(String url, String username, String channel) throws IOException {
+        Client client = new Client(url);
+        client.register(username, "password");
+        Models.AuthResponse login = client.login(username, "password", null);
+        if (!login.success) {
+            throw new IOException("Login failed for " + username + ": " + login.error);
+        }
+        client.joinChannel(channel);
+        client.addMessageListener(channel, message -> {
+            long sentAt = parseSentAt(message.text);
+            if (sentAt >= 0) {
+                delivered.incrementAndGet();
+                record(deliveryLatency, System.nanoTime() - runStart - sentAt);
+            }
+        });
+        client.connectWebSocket();
+        return client;
+    }
+
+    private ScheduledFuture<?> schedule(ScheduledThreadPoolExecutor senders, Client client, String channel,
+                                        long periodNanos, int payload) {
+        long initialDelay = ThreadLocalRandom.current().nextLong(periodNanos);
+        long firstRun = System.nanoTime() + initialDelay;
+        AtomicLong ticks = new AtomicLong();
+        String padding = "x".repeat(Math.max(0, payload - 21));
+        return senders.scheduleAtFixedRate(() -> {
+            // Measure from the intended start so a stalled sender does not hide queueing delay.
+            long intended = firstRun + ticks.getAndIncrement() * periodNanos;
+            try {
+                Models.MessageResponse response = client.sendMessage(channel,
+                    String.format("%020d ", System.nanoTime() - runStart) + padding, null, false);
+                if (response.success) {
+                    sent.incrementAndGet();
+                } else {
+                    errors.incrementAndGet();
+                }
+            } catch (IOException | RuntimeException e) {
+                errors.incrementAndGet();
+            }
+            record(sendLatency, System.nanoTime() - intended);
+        }, initialDelay, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void sampleFor(int seconds, String phase, MockServer server) throws InterruptedException {
+        long lastSent = sent.get();
+        for (int i = 0; i < seconds; i++) {
+            Thread.sleep(1000);
+            Histogram send = sendLatency.getIntervalHistogram();
+            Histogram delivery = deliveryLatency.getIntervalHistogram();
+            if (measuring) {
+                sendTotal.add(send);
+                deliveryTotal.add(delivery);
+            }
+            long now = sent.get();
+            System.out.printf("[%s %3ds] %,8d msg/s  send p99 %8.2f ms  delivery p99 %8.2f ms%s%n",
+                phase, i + 1, now - lastSent, send.getValueAtPercentile(99) / 1000.0,
+                delivery.getValueAtPercentile(99) / 1000.0,
+                server == null ? "" : "  connections " + server.getOpenConnections());
+            lastSent = now;
+        }
+    }
+
+    private boolean checkGates(double throughput) {
+        boolean passed = true;
+        if (options.containsKey("max-p99-ms")) {
+            double limit = doubleOption("max-p99-ms", 0);
+            double p99 = sendTotal.getValueAtPercentile(99) / 1000.0;
+            if (p99 > limit) {
+                System.out.printf("FAIL: send p99 %.2f ms exceeds %.2f ms%n", p99, limit);
+                passed = false;
+            }
+        }
+        if (options.containsKey("min-throughput")) {
+            double limit = doubleOption("min-throughput", 0);
+            if (throughput < limit) {
+                System.out.printf("FAIL: throughput %.1f msg/s below %.1f msg/s%n", throughput, limit);
+                passed = false;
+            }
+        }
+        return passed;
+    }
+
+    private static void awaitConnected(List<Client> clients) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (clients.stream().anyMatch(client -> !client.isWebSocketConnected())) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Event sockets did not connect within 30 s");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private static long parseSentAt(String text) {
+        if (text == null || text.length() < 20) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(text.substring(0, 20));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void record(Recorder recorder, long nanos) {
+        recorder.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), HIGHEST_TRACKABLE_MICROS));
+    }
+
+    private static void printPercentiles(String name, Histogram histogram) {
+        System.out.printf("%-17s p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f ms (%,d samples)%n", name,
+            histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+            histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+            histogram.getMaxValue() / 1000.0, histogram.getTotalCount());
+    }
+
+    /**
+     * Bytes allocated so far by live threads, split into mock server threads (true)
+     * and everything else (false). Threads that have exited are not counted, so
+     * treat the result as a lower bound.
+     */
+    private static Map<Boolean, Long> allocatedBytes() {
+        Map<Boolean, Long> totals = new HashMap<>(Map.of(true, 0L, false, 0L));
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return totals;
+        }
+        long[] ids = bean.getAllThreadIds();
+        long[] bytes = ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(ids);
+        ThreadInfo[] infos = bean.getThreadInfo(ids);
+        for (int i = 0; i < ids.length; i++) {
+            if (infos[i] != null && bytes[i] > 0) {
+                totals.merge(infos[i].getThreadName().startsWith("mock-server"), bytes[i], Long::sum);
+            }
+        }
+        return totals;
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(gc.getCollectionTime(), 0);
+        }
+        return total;
+    }
+
+    private static String openFileDescriptors() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            return String.valueOf(((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount());
+        }
+        return "n/a";
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    private double doubleOption(String name, double defaultValue) {
+        return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+    }
+}
@@ -0,0 +1,445 @@
+package com.dumbmessenger.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for the messenger server, good enough to drive {@code Client}
+ * at scale. Speaks plain HTTP/1.1 with keep-alive for the REST endpoints the load
+ * test uses and RFC 6455 WebSocket on {@code api/events}, both on one port like the
+ * real server. New messages are fanned out as {@code message/new} events to every
+ * socket of every member of the channel.
+ */
+public class MockServer implements Closeable {
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int HISTORY_SIZE = 100;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+    private final Map<String, String> usersByToken = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> membersByChannel = new ConcurrentHashMap<>();
+    private final Map<String, Set<Session>> sessionsByUser = new ConcurrentHashMap<>();
+    private final Map<String, Deque<Map<String, Object>>> historyByChannel = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Object>> responsesByIdempotencyKey = new ConcurrentHashMap<>();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicInteger openWebSockets = new AtomicInteger();
+    private final AtomicInteger peakConnections = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong eventsSent = new AtomicLong();
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+    private volatile int failureStatus;
+    private volatile boolean answerPings = true;
+    private volatile boolean closed;
+
+    public MockServer(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(this::acceptLoop, "mock-server-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/";
+    }
+
+    /** Open TCP connections, HTTP and WebSocket alike. */
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    public int getPeakConnections() {
+        return peakConnections.get();
+    }
+
+    public int getOpenWebSockets() {
+        return openWebSockets.get();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getEventsSent() {
+        return eventsSent.get();
+    }
+
+    /** Answers the next {@code count} message posts with {@code status} instead of storing them. */
+    public void failMessages(int count, int status) {
+        failureStatus = status;
+        failuresLeft.set(count);
+    }
+
+    /** When false, WebSocket pings are swallowed, simulating a half-open connection. */
+    public void setAnswerPings(boolean answerPings) {
+        this.answerPings = answerPings;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Set<Session> sessions : sessionsByUser.values()) {
+            for (Session session : sessions) {
+                session.socket.close();
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        AtomicInteger ids = new AtomicInteger();
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            Thread handler = new Thread(() -> serve(socket), "mock-server-" + ids.incrementAndGet());
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        peakConnections.accumulateAndGet(openConnections.incrementAndGet(), Math::max);
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = new BufferedOutputStream(s.getOutputStream());
+            while (!closed) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.isEmpty()) {
+                    return;
+                }
+                Map<String, String> headers = new HashMap<>();
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                    }
+                }
+                String[] parts = requestLine.split(" ");
+                if (parts.length < 2) {
+                    return;
+                }
+                requests.incrementAndGet();
+
+                if ("websocket".equalsIgnoreCase(headers.get("upgrade"))) {
+                    upgrade(s, in, out, parts[1], headers);
+                    return;
+                }
+
+                int length = Integer.parseInt(headers.getOrDefault("content-length", "0"));
+                byte[] body = in.readNBytes(length);
+                Object response = route(parts[0], parts[1], headers, body);
+                int status = 200;
+                if (response instanceof Failure) {
+                    status = ((Failure) response).status;
+                    response = ((Failure) response).body;
+                }
+                byte[] payload = objectMapper.writeValueAsBytes(response);
+                String head = "HTTP/1.1 " + status + (status == 200 ? " OK" : " Error") + "\r\n"
+                    + "Content-Type: application/json\r\n"
+                    + "Content-Length: " + payload.length + "\r\n\r\n";
+                out.write(head.getBytes(StandardCharsets.ISO_8859_1));
+                out.write(payload);
+                out.flush();
+                if ("close".equalsIgnoreCase(headers.get("connection"))) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // Client went away.
+        } finally {
+            openConnections.decrementAndGet();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object route(String method, String target, Map<String, String> headers, byte[] body) throws IOException {
+        int query = target.indexOf('?');
+        String path = query < 0 ? target : target.substring(0, query);
+        Map<String, String> params = query < 0 ? Map.of() : parseQuery(target.substring(query + 1));
+        Map<String, Object> request = body.length == 0 ? Map.of() : objectMapper.readValue(body, Map.class);
+        String user = userFor(headers.get("authorization"));
+
+        switch (method + " " + path) {
+            case "POST /api/register":
+                return Map.of("success", true);
+            case "POST /api/login": {
+                String token = "tok-" + UUID.randomUUID();
+                usersByToken.put(token, String.valueOf(request.get("username")));
+                return Map.of("success", true, "token", token);
+            }
+            case "POST /api/channels/join":
+                if (user == null) {
+                    return unauthorized();
+                }
+                membersByChannel.computeIfAbsent(String.valueOf(request.get("channel")),
+                    k -> ConcurrentHashMap.newKeySet()).add(user);
+                return Map.of("success", true);
+            case "POST /api/message":
+            case "POST /api/message/voice-only":
+                if (user == null) {
+                    return unauthorized();
+                }
+                if (failuresLeft.getAndUpdate(n -> Math.max(n - 1, 0)) > 0) {
+                    return new Failure(failureStatus, "Injected failure");
+                }
+                return postMessage(user, request, headers.get("idempotency-key"));
+            case "GET /api/messages": {
+                if (user == null) {
+                    return unauthorized();
+                }
+                Deque<Map<String, Object>> history = historyByChannel.get(params.get("channel"));
+                List<Map<String, Object>> messages;
+                if (history == null) {
+                    messages = List.of();
+                } else {
+                    synchronized (history) {
+                        messages = List.copyOf(history);
+                    }
+                }
+                return Map.of("success", true, "messages", messages);
+            }
+            default:
+                return Map.of("success", false, "error", "Not found");
+        }
+    }
+
+    private Map<String, Object> postMessage(String user, Map<String, Object> request, String idempotencyKey)
+            throws IOException {
+        if (idempotencyKey != null) {
+            Map<String, Object> previous = responsesByIdempotencyKey.get(idempotencyKey);
+            if (previous != null) {
+                return previous;
+            }
+        }
+        String channel = String.valueOf(request.get("channel"));
+        Map<String, Object> message = new HashMap<>();
+        message.put("id", UUID.randomUUID().toString());
+        message.put("from", user);
+        message.put("channel", channel);
+        message.put("text", request.get("text"));
+        message.put("replyTo", request.get("replyTo"));
+        message.put("ts", System.currentTimeMillis());
+
+        Deque<Map<String, Object>> history = historyByChannel.computeIfAbsent(channel, k -> new ArrayDeque<>());
+        synchronized (history) {
+            if (history.size() == HISTORY_SIZE) {
+                history.removeFirst();
+            }
+            history.addLast(message);
+        }
+
+        byte[] event = objectMapper.writeValueAsBytes(
+            Map.of("type", "message", "action", "new", "data", message));
+        for (String member : membersByChannel.getOrDefault(channel, Set.of())) {
+            for (Session session : sessionsByUser.getOrDefault(member, Set.of())) {
+                session.send(0x1, event);
+            }
+        }
+
+        Map<String, Object> response = Map.of("success", true, "message", message);
+        if (idempotencyKey != null) {
+            responsesByIdempotencyKey.put(idempotencyKey, response);
+        }
+        return response;
+    }
+
+    private void upgrade(Socket socket, InputStream in, OutputStream out, String target,
+                         Map<String, String> headers) throws IOException {
+        int query = target.indexOf('?');
+        Map<String, String> params = query < 0 ? Map.of() : parseQuery(target.substring(query + 1));
+        String user = usersByToken.get(params.get("token"));
+        if (user == null || !target.startsWith("/api/events")) {
+            out.write("HTTP/1.1 401 Unauthorized\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            return;
+        }
+
+        String accept;
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((headers.get("sec-websocket-key") + WEBSOCKET_GUID)
+                .getBytes(StandardCharsets.ISO_8859_1));
+            accept = Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        out.write(("HTTP/1.1 101 Switching Protocols\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+
+        Session session = new Session(socket, out);
+        Set<Session> sessions = sessionsByUser.computeIfAbsent(user, k -> ConcurrentHashMap.newKeySet());
+        sessions.add(session);
+        openWebSockets.incrementAndGet();
+        try {
+            readFrames(in, session);
+        } finally {
+            sessions.remove(session);
+            openWebSockets.decrementAndGet();
+        }
+    }
+
+    private void readFrames(InputStream in, Session session) throws IOException {
+        while (!closed) {
+            int first = in.read();
+            int second = in.read();
+            if (first < 0 || second < 0) {
+                return;
+            }
+            int opcode = first & 0x0F;
+            long length = second & 0x7F;
+            if (length == 126) {
+                length = ((long) readByte(in) << 8) | readByte(in);
+            } else if (length == 127) {
+                length = 0;
+                for (int i = 0; i < 8; i++) {
+                    length = (length << 8) | readByte(in);
+                }
+            }
+            byte[] mask = (second & 0x80) != 0 ? in.readNBytes(4) : null;
+            byte[] payload = in.readNBytes((int) length);
+            if (mask != null) {
+                for (int i = 0; i < payload.length; i++) {
+                    payload[i] ^= mask[i % 4];
+                }
+            }
+            if (opcode == 0x9) {
+                if (answerPings) {
+                    session.send(0xA, payload);
+                }
+            } else if (opcode == 0x8) {
+                session.send(0x8, payload);
+                return;
+            }
+        }
+    }
+
+    private String userFor(String authorization) {
+        if (authorization == null || !authorization.startsWith("Bearer ")) {
+            return null;
+        }
+        return usersByToken.get(authorization.substring("Bearer ".length()));
+    }
+
+    private static Failure unauthorized() {
+        return new Failure(401, "Unauthorized");
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                break;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b < 0 && line.size() == 0) {
+            return null;
+        }
+        return line.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    /** A non-200 answer with the usual {@code {"success":false}} body. */
+    private static final class Failure {
+        final int status;
+        final Map<String, Object> body;
+
+        Failure(int status, String error) {
+            this.status = status;
+            this.body = Map.of("success", false, "error", error);
+        }
+    }
+
+    private final class Session {
+        final Socket socket;
+        final OutputStream out;
+
+        Session(Socket socket, OutputStream out) {
+            this.socket = socket;
+            this.out = out;
+        }
+
+        synchronized void send(int opcode, byte[] payload) {
+            try {
+                // Server frames are never masked.
+                out.write(0x80 | opcode);
+                if (payload.length < 126) {
+                    out.write(payload.length);
+                } else if (payload.length <= 0xFFFF) {
+                    out.write(126);
+                    out.write(payload.length >>> 8);
+                    out.write(payload.length & 0xFF);
+                } else {
+                    out.write(127);
+                    for (int shift = 56; shift >= 0; shift -= 8) {
+                        out.write((int) ((long) payload.length >>> shift) & 0xFF);
+                    }
+                }
+                out.write(payload);
+                out.flush();
+                if (opcode == 0x1) {
+                    eventsSent.incrementAndGet();
+                }
+            } catch (IOException e) {
+                // The reader thread notices the broken socket and unregisters the session.
+            }
+        }
+    }
+}